@@ -0,0 +1,300 @@
+package org.team1635.vision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs the pipeline over synthetic frames with known ground truth, on every
+ * core, and reports how often it finds the target, how far its corners,
+ * distance and yaw are off, and how many frames a second it gets through.
+ *
+ * <p>
+ * Run it with {@code gradlew accuracy}, or {@code gradlew accuracy
+ * -PaccuracyArgs="--frames 20000 --threads 2"}. The same frames are
+ * generated on every run. With {@code --min-detection} or
+ * {@code --max-corner-error} it exits with status 1 when the results are
+ * worse, so it can guard a change that was only meant to make the pipeline
+ * faster.
+ */
+public class AccuracyHarness {
+
+	// Distance buckets of the report, in inches
+	private static final double[] DISTANCE_EDGES = { 30, 60, 90, 120 };
+
+	/**
+	 * Results of some frames. Each thread fills its own, then they are added
+	 * up.
+	 */
+	static class Tally {
+		int frames;
+		int skipped;
+		int detected;
+		int wrong;
+		// Corner errors of the detected frames, in reference pixels
+		double[] cornerErrors = new double[256];
+		int cornerCount;
+		double distanceError;
+		double yawError;
+		int measured;
+		long processNanos;
+
+		void addCornerError(double error) {
+			if (cornerCount == cornerErrors.length) {
+				cornerErrors = Arrays.copyOf(cornerErrors, cornerCount * 2);
+			}
+			cornerErrors[cornerCount++] = error;
+		}
+
+		void add(Tally other) {
+			frames += other.frames;
+			skipped += other.skipped;
+			detected += other.detected;
+			wrong += other.wrong;
+			for (int i = 0; i < other.cornerCount; i++) {
+				addCornerError(other.cornerErrors[i]);
+			}
+			distanceError += other.distanceError;
+			yawError += other.yawError;
+			measured += other.measured;
+			processNanos += other.processNanos;
+		}
+
+		double detectionRate() {
+			return frames == 0 ? 0 : detected / (double) frames;
+		}
+
+		double meanCornerError() {
+			double sum = 0;
+			for (int i = 0; i < cornerCount; i++) {
+				sum += cornerErrors[i];
+			}
+			return cornerCount == 0 ? 0 : sum / cornerCount;
+		}
+
+		double cornerErrorPercentile(double percentile) {
+			if (cornerCount == 0) {
+				return 0;
+			}
+			double[] sorted = Arrays.copyOf(cornerErrors, cornerCount);
+			Arrays.sort(sorted);
+			return sorted[Math.min(cornerCount - 1, (int) (percentile * cornerCount))];
+		}
+
+		String format(String name) {
+			return String.format("%-16s %7d %8.1f%% %6.2f %6.2f %8.2f %7.2f %6d", name, frames, detectionRate() * 100,
+					meanCornerError(), cornerErrorPercentile(0.95), measured == 0 ? 0 : distanceError / measured,
+					measured == 0 ? 0 : yawError / measured, wrong);
+		}
+	}
+
+	/**
+	 * The tallies of one thread, by occlusion and by distance.
+	 */
+	static class Results {
+		final Tally all = new Tally();
+		final Tally[] byOcclusion = newTallies(SyntheticTarget.Occlusion.values().length);
+		final Tally[] byDistance = newTallies(DISTANCE_EDGES.length - 1);
+
+		void add(Results other) {
+			all.add(other.all);
+			for (int i = 0; i < byOcclusion.length; i++) {
+				byOcclusion[i].add(other.byOcclusion[i]);
+			}
+			for (int i = 0; i < byDistance.length; i++) {
+				byDistance[i].add(other.byDistance[i]);
+			}
+		}
+
+		private static Tally[] newTallies(int count) {
+			Tally[] tallies = new Tally[count];
+			for (int i = 0; i < count; i++) {
+				tallies[i] = new Tally();
+			}
+			return tallies;
+		}
+	}
+
+	/**
+	 * Runs the frames with the seeds from first to last, not included, on
+	 * the calling thread.
+	 */
+	static Results run(long first, long last, CameraModel model, boolean undistort) {
+		Results results = new Results();
+		SyntheticTarget target = new SyntheticTarget(model);
+		VisionPipeline pipeline = FrameCorpus.newPipeline();
+		pipeline.setCameraModel(model);
+		pipeline.setUndistort(undistort);
+		Mat frame = new Mat();
+		double[] truth = new double[16];
+		try {
+			for (long seed = first; seed < last; seed++) {
+				SyntheticTarget.Scene scene = SyntheticTarget.Scene.random(seed);
+				if (!target.render(scene, frame, truth)) {
+					results.all.skipped++;
+					continue;
+				}
+				long start = System.nanoTime();
+				pipeline.process(frame);
+				long nanos = System.nanoTime() - start;
+				Tally byOcclusion = results.byOcclusion[scene.occlusion.ordinal()];
+				Tally byDistance = results.byDistance[distanceBucket(scene.distance)];
+				for (Tally tally : new Tally[] { results.all, byOcclusion, byDistance }) {
+					score(scene, target, pipeline, truth, nanos, tally);
+				}
+			}
+		} finally {
+			frame.release();
+			target.release();
+			pipeline.close();
+		}
+		return results;
+	}
+
+	private static int distanceBucket(double distance) {
+		for (int i = 1; i < DISTANCE_EDGES.length - 1; i++) {
+			if (distance < DISTANCE_EDGES[i]) {
+				return i - 1;
+			}
+		}
+		return DISTANCE_EDGES.length - 2;
+	}
+
+	/**
+	 * Counts a frame as detected if the pipeline found both strips, or found
+	 * one of them alone, where the truth has it.
+	 */
+	private static void score(SyntheticTarget.Scene scene, SyntheticTarget target, VisionPipeline pipeline,
+			double[] truth, long nanos, Tally tally) {
+		tally.frames++;
+		tally.processNanos += nanos;
+		if (!pipeline.getTargetAcquired()) {
+			return;
+		}
+		QuadBuffer quads = pipeline.getQuads();
+		double scale = scene.width / VisionPipeline.REFERENCE_WIDTH;
+		int left = pipeline.getLeftStripSlot();
+		int right = pipeline.getRightStripSlot();
+		// A strip found alone is matched to whichever strip it is nearest
+		int leftTruth = right < 0 && nearestStrip(quads, left, truth) == 1 ? 8 : 0;
+		double leftError = cornerError(quads, left, truth, leftTruth) / scale;
+		double rightError = right < 0 ? 0 : cornerError(quads, right, truth, 8) / scale;
+		// Off by more than half a strip width is something else
+		double stripWidth = Math.abs(truth[QuadBuffer.TOP_RIGHT * 2] - truth[QuadBuffer.TOP_LEFT * 2]) / scale;
+		if (Math.max(leftError, rightError) > Math.max(2, stripWidth / 2)) {
+			tally.wrong++;
+			return;
+		}
+		tally.detected++;
+		tally.addCornerError(leftError);
+		if (right >= 0) {
+			tally.addCornerError(rightError);
+			tally.distanceError += Math.abs(pipeline.getDistanceInches() - target.expectedDistance(scene));
+			tally.yawError += Math.abs(pipeline.getYawDegrees() - scene.bearing);
+			tally.measured++;
+		}
+	}
+
+	private static int nearestStrip(QuadBuffer quads, int slot, double[] truth) {
+		double x = quads.getCenterX(slot);
+		double left = (truth[QuadBuffer.TOP_LEFT * 2] + truth[QuadBuffer.TOP_RIGHT * 2]) / 2;
+		double right = (truth[8 + QuadBuffer.TOP_LEFT * 2] + truth[8 + QuadBuffer.TOP_RIGHT * 2]) / 2;
+		return Math.abs(x - left) <= Math.abs(x - right) ? 0 : 1;
+	}
+
+	/**
+	 * @return the mean distance between the corners of a quad and the true
+	 *         corners from an index of truth, in frame pixels
+	 */
+	private static double cornerError(QuadBuffer quads, int slot, double[] truth, int offset) {
+		double sum = 0;
+		for (int corner = 0; corner < 4; corner++) {
+			int i = offset + corner * 2;
+			sum += Math.hypot(quads.getX(slot, corner) - truth[i], quads.getY(slot, corner) - truth[i + 1]);
+		}
+		return sum / 4;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int frames = 5000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long seed = 1635;
+		boolean undistort = false;
+		double minDetection = 0;
+		double maxCornerError = Double.MAX_VALUE;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--frames".equals(arg)) {
+				frames = Integer.parseInt(args[++i]);
+			} else if ("--threads".equals(arg)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("--seed".equals(arg)) {
+				seed = Long.parseLong(args[++i]);
+			} else if ("--undistort".equals(arg)) {
+				undistort = true;
+			} else if ("--min-detection".equals(arg)) {
+				minDetection = Double.parseDouble(args[++i]);
+			} else if ("--max-corner-error".equals(arg)) {
+				maxCornerError = Double.parseDouble(args[++i]);
+			} else {
+				System.err.println("Unknown argument " + arg);
+				System.exit(2);
+			}
+		}
+
+		FrameCorpus.loadLibrary();
+		final CameraModel model = CameraModel.DEFAULT;
+		final boolean undistortCorners = undistort;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Results>> futures = new ArrayList<Future<Results>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final long first = seed + (long) frames * t / threads;
+			final long last = seed + (long) frames * (t + 1) / threads;
+			futures.add(executor.submit(() -> run(first, last, model, undistortCorners)));
+		}
+		Results results = new Results();
+		for (Future<Results> future : futures) {
+			results.add(future.get());
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+
+		Tally all = results.all;
+		System.out.println(String.format("%d frames (%d skipped, off the frame) on %d threads in %.1f s", all.frames,
+				all.skipped, threads, seconds));
+		System.out.println(String.format("%.0f frames/s, %.2f ms per frame per thread", all.frames / seconds,
+				all.frames == 0 ? 0 : all.processNanos / 1e6 / all.frames));
+		System.out.println();
+		System.out.println(String.format("%-16s %7s %9s %6s %6s %8s %7s %6s", "", "frames", "detected", "corner",
+				"p95", "dist in", "yaw deg", "wrong"));
+		System.out.println(all.format("all"));
+		for (SyntheticTarget.Occlusion occlusion : SyntheticTarget.Occlusion.values()) {
+			System.out.println(results.byOcclusion[occlusion.ordinal()].format(occlusion.toString().toLowerCase()));
+		}
+		for (int i = 0; i < results.byDistance.length; i++) {
+			System.out.println(results.byDistance[i]
+					.format(String.format("%.0f-%.0f in", DISTANCE_EDGES[i], DISTANCE_EDGES[i + 1])));
+		}
+		System.out.println();
+		System.out.println("Corner errors are mean and 95th percentile pixels of a 320 wide frame; "
+				+ "distance and yaw errors are means over frames with both strips.");
+
+		boolean failed = false;
+		if (all.detectionRate() < minDetection) {
+			System.out.println(String.format("FAILED: detection rate %.3f below %.3f", all.detectionRate(), minDetection));
+			failed = true;
+		}
+		if (all.meanCornerError() > maxCornerError) {
+			System.out.println(
+					String.format("FAILED: mean corner error %.2f above %.2f", all.meanCornerError(), maxCornerError));
+			failed = true;
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,95 @@
+package org.team1635.vision;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Correcting the corners of two strips through the grid of the camera model,
+ * against inverting the distortion model for each of them and against
+ * undistorting the whole frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraModelBenchmark {
+
+	// The corners of two strips near the edge of a 320x240 frame
+	private static final double[] CORNERS = { 20, 60, 31, 60, 31, 100, 20, 100, 62, 61, 73, 61, 73, 101, 62, 101 };
+
+	private CameraModel model;
+	private CameraModel.Tables tables;
+	private final double[] corners = new double[CORNERS.length];
+	private Mat frame;
+	private Mat undistorted;
+	private Mat cameraMatrix;
+	private Mat distortion;
+
+	@Setup
+	public void setUp() {
+		FrameCorpus.loadLibrary();
+		Properties properties = new Properties();
+		// A wide angle webcam
+		properties.setProperty("k1", "-0.35");
+		properties.setProperty("k2", "0.12");
+		properties.setProperty("p1", "0.001");
+		properties.setProperty("p2", "-0.0005");
+		model = CameraModel.fromProperties(properties);
+		tables = model.tablesFor(320, 240);
+		frame = FrameCorpus.load("target-320x240");
+		undistorted = new Mat();
+		cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+		distortion = new Mat(1, 5, CvType.CV_64F);
+		cameraMatrix.put(0, 0, model.getFx(), 0, model.getCx(), 0, model.getFy(), model.getCy(), 0, 0, 1);
+		distortion.put(0, 0, -0.35, 0.12, 0.001, -0.0005, 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		frame.release();
+		undistorted.release();
+		cameraMatrix.release();
+		distortion.release();
+	}
+
+	@Benchmark
+	public double[] gridCorners() {
+		System.arraycopy(CORNERS, 0, corners, 0, CORNERS.length);
+		for (int i = 0; i < corners.length; i += 2) {
+			tables.undistort(corners, i);
+		}
+		return corners;
+	}
+
+	@Benchmark
+	public double[] exactCorners() {
+		System.arraycopy(CORNERS, 0, corners, 0, CORNERS.length);
+		for (int i = 0; i < corners.length; i += 2) {
+			model.undistortPoint(corners, i, 320, 240);
+		}
+		return corners;
+	}
+
+	@Benchmark
+	public Mat wholeFrame() {
+		Imgproc.undistort(frame, undistorted, cameraMatrix, distortion);
+		return undistorted;
+	}
+}
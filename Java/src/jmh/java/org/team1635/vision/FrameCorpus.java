@@ -0,0 +1,92 @@
+package org.team1635.vision;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * The frames the benchmarks run on, checked in under src/jmh/resources/frames.
+ * The jmh task passes their location in the vision.corpus property.
+ */
+public class FrameCorpus {
+
+	// Same ranges as Main
+	static final double[] HUE_RANGE = { 0.0, 173.0 };
+	static final double[] SAT_RANGE = { 0.0, 32.0 };
+	static final double[] VAL_RANGE = { 249.0, 255.0 };
+
+	private static boolean loaded = false;
+
+	private FrameCorpus() {
+	}
+
+	/**
+	 * Loads the OpenCV natives, once.
+	 */
+	static synchronized void loadLibrary() {
+		if (!loaded) {
+			System.loadLibrary("opencv_java310");
+			loaded = true;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            file name of the frame, without the .png
+	 * @return the frame as a BGR Mat
+	 */
+	static Mat load(String name) {
+		loadLibrary();
+		File file = new File(System.getProperty("vision.corpus", "src/jmh/resources/frames"), name + ".png");
+		Mat frame = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_COLOR);
+		if (frame.empty()) {
+			throw new IllegalStateException("Could not read frame " + file);
+		}
+		return frame;
+	}
+
+	/**
+	 * @return a pipeline set up the way Main sets it up
+	 */
+	static VisionPipeline newPipeline() {
+		VisionPipeline pipeline = new VisionPipeline();
+		pipeline.setFilter(HUE_RANGE, SAT_RANGE, VAL_RANGE);
+		return pipeline;
+	}
+
+	/**
+	 * Deep copies contours, so they stay valid after the pipeline reuses its
+	 * own.
+	 */
+	static ArrayList<MatOfPoint> copy(List<MatOfPoint> contours) {
+		ArrayList<MatOfPoint> copy = new ArrayList<MatOfPoint>();
+		for (MatOfPoint contour : contours) {
+			MatOfPoint c = new MatOfPoint();
+			contour.copyTo(c);
+			copy.add(c);
+		}
+		return copy;
+	}
+
+	static ArrayList<MatOfPoint2f> copy2f(List<MatOfPoint2f> polys) {
+		ArrayList<MatOfPoint2f> copy = new ArrayList<MatOfPoint2f>();
+		for (MatOfPoint2f poly : polys) {
+			MatOfPoint2f c = new MatOfPoint2f();
+			poly.copyTo(c);
+			copy.add(c);
+		}
+		return copy;
+	}
+
+	static void release(List<? extends Mat> mats) {
+		for (Mat mat : mats) {
+			mat.release();
+		}
+		mats.clear();
+	}
+}
@@ -0,0 +1,68 @@
+package org.team1635.vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole pipeline, and the threshold step that depends on the threshold
+ * mode, on each frame of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	@Param({ "target-320x240", "split-strip-320x240", "cluttered-320x240", "far-target-640x480", "empty-320x240" })
+	public String frame;
+
+	@Param({ "LUT", "HSV" })
+	public String threshold;
+
+	private VisionPipeline pipeline;
+	private Mat source;
+	private final Mat mask = new Mat();
+
+	@Setup
+	public void setUp() {
+		source = FrameCorpus.load(frame);
+		pipeline = FrameCorpus.newPipeline();
+		pipeline.setThresholdMode(VisionPipeline.ThresholdMode.valueOf(threshold), 0);
+		// Builds the lookup table and sizes the working Mats
+		pipeline.process(source);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pipeline.close();
+		source.release();
+		mask.release();
+	}
+
+	@Benchmark
+	public int process() {
+		pipeline.process(source);
+		return pipeline.getTargetCandidateCount();
+	}
+
+	@Benchmark
+	public Mat hsvThreshold() {
+		pipeline.hsvThreshold(source, pipeline.filter, mask);
+		return mask;
+	}
+}
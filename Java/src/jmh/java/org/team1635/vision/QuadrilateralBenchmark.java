@@ -0,0 +1,90 @@
+package org.team1635.vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The corner extraction and merging of split strips.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadrilateralBenchmark {
+
+	// A strip with its top left corner cut off, so one corner is hidden
+	private MatOfPoint fivePoints;
+	// The two halves of a strip split by the peg
+	private Quadrilateral top;
+	private Quadrilateral bottom;
+	// The same, in a buffer
+	private final QuadBuffer buffer = new QuadBuffer();
+	private MatOfPoint topPoly;
+	private MatOfPoint bottomPoly;
+
+	@Setup
+	public void setUp() {
+		FrameCorpus.loadLibrary();
+		fivePoints = new MatOfPoint(new Point(142, 80), new Point(150, 80), new Point(150, 106),
+				new Point(140, 106), new Point(140, 83));
+		topPoly = new MatOfPoint(new Point(161, 90), new Point(171, 90), new Point(171, 106), new Point(161, 106));
+		bottomPoly = new MatOfPoint(new Point(161, 110), new Point(171, 110), new Point(171, 126),
+				new Point(161, 126));
+		top = new Quadrilateral();
+		top.fromMatOfPoint(topPoly);
+		bottom = new Quadrilateral();
+		bottom.fromMatOfPoint(bottomPoly);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fivePoints.release();
+		topPoly.release();
+		bottomPoly.release();
+	}
+
+	@Benchmark
+	public MatOfPoint healPoly() {
+		return new Quadrilateral().healPoly(fivePoints);
+	}
+
+	@Benchmark
+	public Quadrilateral merge() {
+		return Quadrilateral.merge(top, bottom);
+	}
+
+	@Benchmark
+	public int bufferHealPoly() {
+		buffer.clear();
+		return buffer.add(fivePoints);
+	}
+
+	/**
+	 * Heals both halves, merges them and drops the halves, like findStrips.
+	 */
+	@Benchmark
+	public int bufferMerge() {
+		buffer.clear();
+		buffer.add(topPoly);
+		buffer.add(bottomPoly);
+		buffer.merge(0, 1);
+		buffer.remove(1);
+		buffer.remove(0);
+		return buffer.getHeight(0);
+	}
+}
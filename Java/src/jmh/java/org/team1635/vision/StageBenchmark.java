@@ -0,0 +1,138 @@
+package org.team1635.vision;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each step after the threshold on its own. The input of every step is what
+ * the step before it produced for the frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+
+	@Param({ "target-320x240", "split-strip-320x240", "cluttered-320x240", "far-target-640x480", "empty-320x240" })
+	public String frame;
+
+	private VisionPipeline pipeline;
+	private Mat mask;
+	private ArrayList<MatOfPoint> contours;
+	private ArrayList<MatOfPoint> filtered;
+	private ArrayList<MatOfPoint> hulls;
+	private ArrayList<MatOfPoint2f> polys;
+	private ParallelContours parallel;
+
+	private final Mat work = new Mat();
+	private final ArrayList<MatOfPoint> stageContours = new ArrayList<MatOfPoint>();
+	private final ArrayList<MatOfPoint> stageOutput = new ArrayList<MatOfPoint>();
+	private final ArrayList<MatOfPoint2f> stagePolys = new ArrayList<MatOfPoint2f>();
+	private final ArrayList<MatOfPoint> stageHulls = new ArrayList<MatOfPoint>();
+
+	@Setup
+	public void setUp() {
+		Mat source = FrameCorpus.load(frame);
+		pipeline = FrameCorpus.newPipeline();
+		pipeline.process(source);
+		mask = pipeline.hsvThresholdOutput().clone();
+		contours = FrameCorpus.copy(pipeline.findContoursOutput());
+		filtered = FrameCorpus.copy(pipeline.filterContoursOutput());
+		hulls = FrameCorpus.copy(pipeline.convexHullsOutput());
+		polys = FrameCorpus.copy2f(pipeline.aproxPolysOutput());
+		parallel = new ParallelContours(pipeline);
+		source.release();
+	}
+
+	@TearDown
+	public void tearDown() {
+		parallel.close();
+		pipeline.close();
+		mask.release();
+		work.release();
+		FrameCorpus.release(contours);
+		FrameCorpus.release(filtered);
+		FrameCorpus.release(hulls);
+		FrameCorpus.release(polys);
+	}
+
+	/**
+	 * Includes copying the mask, since findContours modifies its input.
+	 */
+	@Benchmark
+	public int findContours() {
+		mask.copyTo(work);
+		pipeline.findContours(work, false, stageContours);
+		int count = stageContours.size();
+		VisionPipeline.releaseContours(stageContours);
+		return count;
+	}
+
+	/**
+	 * Labels the mask and traces only the components that could pass the
+	 * filter, which needs no copy of the mask.
+	 */
+	@Benchmark
+	public int traceComponents() {
+		pipeline.traceComponents(mask, 1, stageContours);
+		int count = stageContours.size();
+		VisionPipeline.releaseContours(stageContours);
+		return count;
+	}
+
+	@Benchmark
+	public int filterContours() {
+		pipeline.beginFrame();
+		pipeline.filterContours(contours, stageOutput);
+		return stageOutput.size();
+	}
+
+	@Benchmark
+	public int convexHulls() {
+		pipeline.beginFrame();
+		pipeline.convexHulls(filtered, stageOutput);
+		return stageOutput.size();
+	}
+
+	@Benchmark
+	public int approxPolys() {
+		pipeline.beginFrame();
+		pipeline.approxPolys(hulls, stagePolys);
+		return stagePolys.size();
+	}
+
+	/**
+	 * The three steps above together, on all cores, as the pipeline runs them
+	 * on frames with many contours.
+	 */
+	@Benchmark
+	public int parallelContours() {
+		parallel.reset();
+		parallel.process(contours, stageOutput, stageHulls, stagePolys);
+		return stagePolys.size();
+	}
+
+	@Benchmark
+	public boolean findStrips() {
+		pipeline.findStrips(polys);
+		return pipeline.getTargetAcquired();
+	}
+}
@@ -0,0 +1,258 @@
+package org.team1635.vision;
+
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Renders the 2017 peg target, two strips of tape 2 inches wide and 5 tall
+ * with 6.25 inches between them, into BGR frames, and gives where the
+ * corners of the strips really are.
+ *
+ * <p>
+ * The strips are projected through a camera model, so the ground truth is
+ * exact and the distance and yaw the pipeline works out with the same model
+ * can be checked too. The edges are anti-aliased to 1/16 of a pixel. A
+ * generator is not thread safe; use one per thread.
+ */
+public class SyntheticTarget {
+
+	static final double STRIP_WIDTH = 2;
+	static final double STRIP_HEIGHT = 5;
+	// From the middle of the target to the middle of each strip
+	static final double STRIP_OFFSET = (6.25 + STRIP_WIDTH) / 2;
+	// fillConvexPoly takes fixed point coordinates with this many fraction
+	// bits
+	private static final int SHIFT = 4;
+
+	/**
+	 * What covers part of a strip.
+	 */
+	public enum Occlusion {
+		NONE,
+		/**
+		 * A bar across the middle of one strip, like the peg seen from the
+		 * side, which splits it in two quads that findStrips has to merge.
+		 */
+		SPLIT,
+		/** A box over a corner of one strip */
+		CORNER
+	}
+
+	/**
+	 * One frame to render. The fields can be set directly.
+	 */
+	public static class Scene {
+		int width = 320;
+		int height = 240;
+		// Inches along the floor from the camera to the middle of the target
+		double distance = 60;
+		// Degrees right of the robot's front
+		double bearing = 0;
+		// Degrees the target is turned, right side toward the camera
+		double skew = 0;
+		// Grey level of the tape and of the background
+		double brightness = 255;
+		double ambient = 40;
+		// Standard deviation of the pixel noise
+		double noise = 0;
+		Occlusion occlusion = Occlusion.NONE;
+		// Which strip is occluded
+		boolean occludeRight = false;
+		long seed = 0;
+
+		/**
+		 * @return a scene with everything picked at random from ranges the
+		 *         pipeline should handle, the same for the same seed
+		 */
+		public static Scene random(long seed) {
+			Random random = new Random(seed);
+			Scene scene = new Scene();
+			boolean large = random.nextInt(4) == 0;
+			scene.width = large ? 640 : 320;
+			scene.height = large ? 480 : 240;
+			scene.distance = 30 + random.nextDouble() * 90;
+			scene.bearing = (random.nextDouble() * 2 - 1) * 20;
+			scene.skew = (random.nextDouble() * 2 - 1) * 30;
+			scene.brightness = 252 + random.nextInt(4);
+			scene.ambient = 10 + random.nextInt(100);
+			scene.noise = random.nextDouble() * 4;
+			int occlusion = random.nextInt(10);
+			scene.occlusion = occlusion < 7 ? Occlusion.NONE : occlusion < 9 ? Occlusion.SPLIT : Occlusion.CORNER;
+			scene.occludeRight = random.nextBoolean();
+			scene.seed = seed;
+			return scene;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%dx%d %.0f in, bearing %.1f, skew %.1f, brightness %.0f, ambient %.0f, noise %.1f, %s",
+					width, height, distance, bearing, skew, brightness, ambient, noise, occlusion);
+		}
+	}
+
+	private final CameraModel model;
+	private final MatOfPoint poly = new MatOfPoint();
+	private final int[] polyPoints = new int[8];
+	private final Point from = new Point();
+	private final Point to = new Point();
+	private byte[] pixels = new byte[0];
+	// x, y, z in camera coordinates: right, down, forward
+	private final double[] xyz = new double[3];
+
+	public SyntheticTarget(CameraModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Renders a scene.
+	 *
+	 * @param frame
+	 *            where to render, made the size of the scene
+	 * @param corners
+	 *            16 numbers set to the x and y of the corners of the left,
+	 *            then the right strip, each in QuadBuffer corner order
+	 * @return false if part of the target is behind the camera or out of the
+	 *         frame, in which case nothing is rendered
+	 */
+	public boolean render(Scene scene, Mat frame, double[] corners) {
+		for (int strip = 0; strip < 2; strip++) {
+			double middle = strip == 0 ? -STRIP_OFFSET : STRIP_OFFSET;
+			for (int corner = 0; corner < 4; corner++) {
+				boolean right = corner == QuadBuffer.TOP_RIGHT || corner == QuadBuffer.BOTTOM_RIGHT;
+				boolean top = corner == QuadBuffer.TOP_LEFT || corner == QuadBuffer.TOP_RIGHT;
+				double lateral = middle + (right ? STRIP_WIDTH : -STRIP_WIDTH) / 2;
+				double up = model.getTargetHeight() + (top ? STRIP_HEIGHT : 0);
+				int i = (strip * 4 + corner) * 2;
+				if (!project(scene, lateral, up, corners, i)) {
+					return false;
+				}
+				if (corners[i] < 0 || corners[i] > scene.width - 1 || corners[i + 1] < 0
+						|| corners[i + 1] > scene.height - 1) {
+					return false;
+				}
+			}
+		}
+
+		frame.create(scene.height, scene.width, CvType.CV_8UC3);
+		frame.setTo(new Scalar(scene.ambient, scene.ambient, scene.ambient));
+		Scalar tape = new Scalar(scene.brightness, scene.brightness, scene.brightness);
+		for (int strip = 0; strip < 2; strip++) {
+			fillQuad(frame, corners, strip * 8, tape);
+		}
+		occlude(scene, frame, corners);
+		addNoise(scene, frame);
+		return true;
+	}
+
+	/**
+	 * @return the distance the pipeline should measure: along the camera
+	 *         axis to the bottom of the left strip, in inches
+	 */
+	public double expectedDistance(Scene scene) {
+		toCamera(scene, -STRIP_OFFSET, model.getTargetHeight());
+		return xyz[2] * Math.cos(model.getPitch()) - xyz[1] * Math.sin(model.getPitch());
+	}
+
+	/**
+	 * Projects a point of the target to the frame.
+	 *
+	 * @param lateral
+	 *            inches right of the middle of the target, along it
+	 * @param up
+	 *            inches above the floor
+	 * @return false if it is behind the camera
+	 */
+	private boolean project(Scene scene, double lateral, double up, double[] out, int i) {
+		toCamera(scene, lateral, up);
+		if (xyz[2] <= 1) {
+			return false;
+		}
+		double scaleX = scene.width / model.getCalibrationWidth();
+		double scaleY = scene.height / model.getCalibrationHeight();
+		out[i] = model.getFx() * scaleX * xyz[0] / xyz[2] + model.getCx() * scaleX;
+		out[i + 1] = model.getFy() * scaleY * xyz[1] / xyz[2] + model.getCy() * scaleY;
+		return true;
+	}
+
+	private void toCamera(Scene scene, double lateral, double up) {
+		double bearing = Math.toRadians(scene.bearing);
+		double skew = Math.toRadians(scene.skew);
+		// Robot coordinates: right and forward along the floor
+		double right = scene.distance * Math.sin(bearing) + lateral * Math.cos(bearing + skew);
+		double forward = scene.distance * Math.cos(bearing) - lateral * Math.sin(bearing + skew);
+		// Turn to the camera's yaw, then tilt to its pitch
+		double yaw = model.getYaw();
+		double x = right * Math.cos(yaw) + forward * Math.sin(yaw);
+		double z = forward * Math.cos(yaw) - right * Math.sin(yaw);
+		double y = model.getCameraHeight() - up;
+		double pitch = model.getPitch();
+		xyz[0] = x;
+		xyz[1] = y * Math.cos(pitch) + z * Math.sin(pitch);
+		xyz[2] = z * Math.cos(pitch) - y * Math.sin(pitch);
+	}
+
+	private void fillQuad(Mat frame, double[] corners, int offset, Scalar color) {
+		// Pixel centers are at whole coordinates, as for the contours
+		for (int i = 0; i < 8; i++) {
+			polyPoints[i] = (int) Math.round(corners[offset + i] * (1 << SHIFT));
+		}
+		poly.create(4, 1, CvType.CV_32SC2);
+		poly.put(0, 0, polyPoints);
+		Imgproc.fillConvexPoly(frame, poly, color, Imgproc.LINE_AA, SHIFT);
+	}
+
+	private void occlude(Scene scene, Mat frame, double[] corners) {
+		if (scene.occlusion == Occlusion.NONE) {
+			return;
+		}
+		int i = scene.occludeRight ? 8 : 0;
+		double x0 = Math.min(corners[i + QuadBuffer.TOP_LEFT * 2], corners[i + QuadBuffer.BOTTOM_LEFT * 2]);
+		double x1 = Math.max(corners[i + QuadBuffer.TOP_RIGHT * 2], corners[i + QuadBuffer.BOTTOM_RIGHT * 2]);
+		double y0 = Math.min(corners[i + QuadBuffer.TOP_LEFT * 2 + 1], corners[i + QuadBuffer.TOP_RIGHT * 2 + 1]);
+		double y1 = Math.max(corners[i + QuadBuffer.BOTTOM_LEFT * 2 + 1],
+				corners[i + QuadBuffer.BOTTOM_RIGHT * 2 + 1]);
+		double w = x1 - x0;
+		double h = y1 - y0;
+		if (scene.occlusion == Occlusion.SPLIT) {
+			// A bar an eighth of the strip high, across its middle
+			from.x = x0 - w;
+			from.y = y0 + h * 0.45;
+			to.x = x1 + w;
+			to.y = y0 + h * 0.575;
+		} else {
+			// A third of the strip's width off its bottom left
+			from.x = x0 - w;
+			from.y = y0 + h * 0.8;
+			to.x = x0 + w / 3;
+			to.y = y1 + h;
+		}
+		Imgproc.rectangle(frame, from, to, new Scalar(scene.ambient, scene.ambient, scene.ambient), Imgproc.FILLED);
+	}
+
+	private void addNoise(Scene scene, Mat frame) {
+		if (scene.noise <= 0) {
+			return;
+		}
+		int length = (int) (frame.total() * frame.channels());
+		if (pixels.length < length) {
+			pixels = new byte[length];
+		}
+		frame.get(0, 0, pixels);
+		Random random = new Random(scene.seed);
+		for (int i = 0; i < length; i++) {
+			int value = (pixels[i] & 0xff) + (int) Math.round(random.nextGaussian() * scene.noise);
+			pixels[i] = (byte) Math.max(0, Math.min(255, value));
+		}
+		frame.put(0, 0, pixels);
+	}
+
+	public void release() {
+		poly.release();
+	}
+}
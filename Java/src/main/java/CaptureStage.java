@@ -0,0 +1,145 @@
+import org.team1635.vision.LatencyHistogram;
+
+/**
+ * Grabs frames from one source into a FrameRing as fast as the source
+ * delivers them.
+ *
+ * <p>
+ * A grab that fails, because the camera was unplugged or stalled, is
+ * followed by a pause that doubles with each failure in a row, so a dead
+ * camera never spins a core that the sonar and NetworkTables need. After a
+ * few failures in a row the camera counts as down, and the source is asked
+ * to reconnect every so often until frames come again.
+ */
+public class CaptureStage extends Stage {
+  private static final long MIN_BACKOFF_MS = 10;
+  private static final long MAX_BACKOFF_MS = 1000;
+  // Failures in a row before the camera counts as down
+  private static final int DOWN_AFTER = 3;
+  // Failures in a row between reconnects
+  private static final int RECONNECT_EVERY = 10;
+
+  private final FrameSource source;
+  private final FrameRing ring;
+  private long frameId = 0;
+  private final FrameClock clock = new FrameClock();
+
+  private int failures = 0;
+  private volatile boolean down = false;
+  // Time of each grab that returned a frame; guarded by itself
+  private final LatencyHistogram grabLatency = new LatencyHistogram();
+  private volatile long timeouts = 0;
+  private volatile long errors = 0;
+  private volatile long reconnects = 0;
+
+  public CaptureStage(FrameSource source, FrameRing ring) {
+    super("Capture " + source.getName());
+    this.source = source;
+    this.ring = ring;
+  }
+
+  public FrameRing getRing() {
+    return ring;
+  }
+
+  /**
+   * @return turns this source's frame times into capture times
+   */
+  public FrameClock getClock() {
+    return clock;
+  }
+
+  protected boolean step() throws InterruptedException {
+    Frame frame = ring.beginWrite();
+    long start = System.nanoTime();
+    // Grab a frame. If it has a frame time of 0, there was an error.
+    long frameTime = source.grabFrame(frame.image);
+    long grabNanos = System.nanoTime();
+    if (frameTime == 0) {
+      ring.abortWrite();
+      failed();
+      return false;
+    }
+    synchronized (grabLatency) {
+      grabLatency.record(grabNanos - start);
+    }
+    if (failures > 0) {
+      if (down) {
+        System.out.println("Camera " + source.getName() + " is back after "
+          + failures + " failed grabs");
+      }
+      failures = 0;
+      down = false;
+    }
+    frame.frameTime = frameTime;
+    frame.grabNanos = grabNanos;
+    frame.captureNanos = clock.toNanos(frameTime, grabNanos);
+    VisionResult recorded = source.getRecorded();
+    frame.replayed = recorded != null;
+    if (frame.replayed) {
+      // Keep the ids of the recording, so results can be matched to it
+      frame.recorded.copyFrom(recorded);
+      frame.frameId = recorded.frameId;
+    } else {
+      frame.frameId = ++frameId;
+    }
+    frame.annotate = false;
+    frame.strips = 0;
+    frame.result.clear();
+    ring.commitWrite();
+    return true;
+  }
+
+  private void failed() throws InterruptedException {
+    String error = source.getError();
+    if (FrameSource.TIMEOUT.equals(error)) {
+      timeouts++;
+    } else {
+      errors++;
+    }
+    failures++;
+    if (failures == DOWN_AFTER) {
+      System.out.println("Camera " + source.getName() + " is down: " + error);
+      down = true;
+    }
+    if (failures % RECONNECT_EVERY == 0 && source.reconnect()) {
+      reconnects++;
+    }
+    long backoff = Math.min(MAX_BACKOFF_MS,
+      MIN_BACKOFF_MS << Math.min(failures - 1, 16));
+    Thread.sleep(backoff);
+  }
+
+  /**
+   * @return true while grabs keep failing, so the other camera should take
+   *   over
+   */
+  public boolean isDown() {
+    return down;
+  }
+
+  public long getTimeouts() {
+    return timeouts;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public long getReconnects() {
+    return reconnects;
+  }
+
+  /**
+   * @return the median, 99th percentile and max grab time in milliseconds,
+   *   since the last call, then starts over
+   */
+  public double[] takeGrabLatencyMs() {
+    synchronized (grabLatency) {
+      double[] ms = { grabLatency.percentile(0.5) / 1e6,
+        grabLatency.percentile(0.99) / 1e6, grabLatency.getMax() / 1e6 };
+      grabLatency.reset();
+      return ms;
+    }
+  }
+}
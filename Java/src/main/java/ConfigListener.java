@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+import org.team1635.vision.PipelineConfig;
+import org.team1635.vision.VisionPipeline;
+
+/**
+ * Lets the pipelines be tuned from the dashboard while they run.
+ *
+ * <p>
+ * Each parameter of PipelineConfig has a number key in the table, named by
+ * its key, like hueMin or minPerimeter. When one of them changes,
+ * NetworkTables calls us back; we make a new config with the new value, swap
+ * it in, and hand it to the pipelines, which pick it up on their next frame.
+ * Nothing polls the table.
+ */
+public class ConfigListener implements ITableListener {
+  private final AtomicReference<PipelineConfig> config;
+  private final List<VisionPipeline> pipelines = new ArrayList<VisionPipeline>();
+
+  public ConfigListener(PipelineConfig initial) {
+    this.config = new AtomicReference<PipelineConfig>(initial);
+  }
+
+  /**
+   * Keep a pipeline tuned. Must be called before attach.
+   */
+  public void addPipeline(VisionPipeline pipeline) {
+    pipelines.add(pipeline);
+    pipeline.setConfig(config.get());
+  }
+
+  /**
+   * Start listening to a table. Keys that are not in the table yet are put
+   * there with their current value, so they show up on the dashboard; keys
+   * that are there already, for example kept by the dashboard from an
+   * earlier run, are applied right away.
+   */
+  public void attach(ITable table) {
+    PipelineConfig current = config.get();
+    for (PipelineConfig.Param param : PipelineConfig.Param.values()) {
+      if (!table.containsKey(param.getKey())) {
+        table.putNumber(param.getKey(), current.get(param));
+      }
+    }
+    table.addTableListener(this, true);
+  }
+
+  public PipelineConfig getConfig() {
+    return config.get();
+  }
+
+  public void valueChanged(ITable source, String key, Object value,
+    boolean isNew) {
+    PipelineConfig.Param param = PipelineConfig.Param.forKey(key);
+    if (param == null || !(value instanceof Number)) return;
+    double number = ((Number) value).doubleValue();
+
+    PipelineConfig current;
+    PipelineConfig next;
+    do {
+      current = config.get();
+      next = current.with(param, number);
+    } while (!config.compareAndSet(current, next));
+    if (next == current) return;
+
+    System.out.println("Config: " + key + " = " + number);
+    for (int i = 0; i < pipelines.size(); i++) {
+      pipelines.get(i).setConfig(next);
+    }
+  }
+}
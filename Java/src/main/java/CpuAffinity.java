@@ -0,0 +1,41 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Pins the calling thread to one CPU core.
+ *
+ * <p>
+ * Java has no API for this, so we look up the Linux thread id of the calling
+ * thread through /proc/thread-self and hand it to taskset. Pinning is a best
+ * effort: if it fails the thread keeps running wherever the scheduler puts it.
+ */
+public class CpuAffinity {
+
+  private CpuAffinity() {
+  }
+
+  /**
+   * @return true if the calling thread is now pinned to the core
+   */
+  public static boolean pinCurrentThread(int cpu) {
+    if (cpu < 0 || cpu >= Runtime.getRuntime().availableProcessors()) {
+      return false;
+    }
+    try {
+      // Links to /proc/<pid>/task/<tid>
+      Path task = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+      String tid = task.getFileName().toString();
+      Process taskset = new ProcessBuilder("taskset", "-p", "-c", 
+        Integer.toString(cpu), tid).redirectErrorStream(true).start();
+      // Drain the output so taskset can not block on a full pipe
+      while (taskset.getInputStream().read() != -1);
+      return taskset.waitFor() == 0;
+    } catch (Exception ex) {
+      System.out.println("Warning: could not pin " 
+        + Thread.currentThread().getName() + " to CPU " + cpu + ": " 
+        + ex.getMessage());
+      return false;
+    }
+  }
+}
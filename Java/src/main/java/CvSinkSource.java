@@ -0,0 +1,50 @@
+import edu.wpi.cscore.CvSink;
+import org.opencv.core.Mat;
+
+/**
+ * Grabs frames from a cscore CvSink, giving up after a timeout.
+ */
+public class CvSinkSource implements FrameSource {
+  private final CvSink sink;
+  private final String name;
+  private final double timeoutSeconds;
+  private final long timeoutNanos;
+  private boolean timedOut = false;
+
+  /**
+   * @param timeout how many seconds to wait for a frame
+   */
+  public CvSinkSource(String name, CvSink sink, double timeout) {
+    this.name = name;
+    this.sink = sink;
+    this.timeoutSeconds = timeout;
+    this.timeoutNanos = (long) (timeout * 1e9);
+  }
+
+  public long grabFrame(Mat image) {
+    long start = System.nanoTime();
+    long frameTime = sink.grabFrame(image, timeoutSeconds);
+    // The sink tells a timeout apart only by its message, so go by the time
+    timedOut = frameTime == 0 && System.nanoTime() - start >= timeoutNanos;
+    return frameTime;
+  }
+
+  public String getError() {
+    return timedOut ? TIMEOUT : sink.getError();
+  }
+
+  /**
+   * A sink by itself has nothing to reconnect; see UsbCameraSource.
+   */
+  public boolean reconnect() {
+    return false;
+  }
+
+  public VisionResult getRecorded() {
+    return null;
+  }
+
+  public String getName() {
+    return name;
+  }
+}
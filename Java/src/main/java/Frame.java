@@ -0,0 +1,62 @@
+import org.opencv.core.Mat;
+
+/**
+ * A slot of a FrameRing: the image and what we know about it. The Mat is
+ * allocated once and reused for every frame that goes through the slot.
+ */
+public class Frame {
+  final Mat image = new Mat();
+  final VisionResult result = new VisionResult();
+  long frameId;
+  long frameTime;
+  // System.nanoTime when the frame was grabbed
+  long grabNanos;
+  // System.nanoTime when the camera captured it, from its frame time
+  long captureNanos;
+  boolean annotate;
+  // Whether the frame is played back from a recording, and what was
+  // recorded with it
+  boolean replayed;
+  final VisionResult recorded = new VisionResult();
+  // Corners of the leftStrip and rightStrip the pipeline found, x and y of
+  // each in QuadBuffer corner order, to draw on the stream
+  int strips;
+  final double[] stripCorners = new double[2 * 8];
+
+  /**
+   * Copy this frame, image included, into another slot.
+   */
+  public void copyTo(Frame other) {
+    image.copyTo(other.image);
+    other.result.copyFrom(result);
+    other.frameId = frameId;
+    other.frameTime = frameTime;
+    other.grabNanos = grabNanos;
+    other.captureNanos = captureNanos;
+    other.annotate = annotate;
+    other.replayed = replayed;
+    other.recorded.copyFrom(recorded);
+    other.strips = strips;
+    System.arraycopy(stripCorners, 0, other.stripCorners, 0, 8 * strips);
+  }
+
+  public Mat getImage() {
+    return image;
+  }
+
+  public long getFrameId() {
+    return frameId;
+  }
+
+  public long getFrameTime() {
+    return frameTime;
+  }
+
+  public long getGrabNanos() {
+    return grabNanos;
+  }
+
+  public long getCaptureNanos() {
+    return captureNanos;
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * Turns the frame times cscore gives, in microseconds, into System.nanoTime,
+ * so the time a frame was captured can be compared with the times of the
+ * later stages.
+ *
+ * <p>
+ * A frame is always grabbed after it was captured, so the smallest
+ * difference seen between grab time and frame time is the offset between
+ * the two clocks plus the quickest a frame ever got through. On the Pi both
+ * are the monotonic clock, so that difference is a few milliseconds and the
+ * offset is taken to be 0. Otherwise, for example when replaying frame times
+ * recorded on another run, the smallest difference is used as the offset,
+ * and capture times are only good relative to the quickest frame.
+ *
+ * <p>
+ * The smallest difference is taken over the last WINDOW to 2 WINDOW frames,
+ * so a clock that drifts is followed.
+ */
+public class FrameClock {
+  // A smallest difference under this means both clocks are the same
+  private static final long SAME_CLOCK_NANOS = 1000000000L;
+  private static final int WINDOW = 300;
+
+  private long lastWindowMin = Long.MAX_VALUE;
+  private long windowMin = Long.MAX_VALUE;
+  private int windowFrames = 0;
+  private volatile long offset = 0;
+
+  /**
+   * @param frameTime the frame time from grabFrame, in microseconds
+   * @param grabNanos System.nanoTime when grabFrame returned
+   * @return System.nanoTime when the frame was captured, never after
+   *   grabNanos
+   */
+  public long toNanos(long frameTime, long grabNanos) {
+    long difference = grabNanos - frameTime * 1000;
+    windowMin = Math.min(windowMin, difference);
+    if (++windowFrames == WINDOW) {
+      lastWindowMin = windowMin;
+      windowMin = Long.MAX_VALUE;
+      windowFrames = 0;
+    }
+    long smallest = Math.min(lastWindowMin, windowMin);
+    offset = smallest >= 0 && smallest < SAME_CLOCK_NANOS ? 0 : smallest;
+    return Math.min(grabNanos, frameTime * 1000 + offset);
+  }
+
+  /**
+   * @return what is added to a frame time in nanoseconds to get
+   *   System.nanoTime, 0 when both are the same clock
+   */
+  public long getOffset() {
+    return offset;
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+
+/**
+ * Records frames, with their frame time, the sonar reading at that time and
+ * the pipeline results, into memory mapped segment files that ReplaySource can play back.
+ *
+ * <p>
+ * The caller only copies the frame into a preallocated slot; a thread of the
+ * recorder writes the slots to disk. If that thread falls behind, frames are
+ * dropped rather than holding up the caller.
+ *
+ * <p>
+ * A segment file starts with a {@value #HEADER_SIZE} byte header (magic,
+ * version, segment size) followed by records. Each record is a
+ * {@value #RECORD_HEADER_SIZE} byte header followed by the pixels of the
+ * frame. The first record header whose magic is not {@link #RECORD_MAGIC}
+ * marks the end of the segment. Everything is little endian. The record
+ * header is:
+ *
+ * <pre>
+ *  0 int    magic
+ *  4 int    record size, header included
+ *  8 int    camera
+ * 12 int    rows, 16 int cols, 20 int OpenCV type of the pixels
+ * 24 long   frame id
+ * 32 long   frame time, microseconds
+ * 40 long   capture time, System.nanoTime
+ * 48 double sonar distance, inches
+ * 56 int    processed, 60 int target count, 64 int target acquired
+ * 68 int    distance (width of the left strip), 72 int error
+ * 76 float  distance, inches
+ * 80 float  yaw, degrees
+ * 84 int    reserved
+ * </pre>
+ *
+ * <p>
+ * A segment is mapped whole, so it can be at most {@link #MAX_SEGMENT_SIZE}
+ * bytes. Java has no way to unmap a file, so a finished segment stays mapped
+ * until its buffer is garbage collected; with small segments and a long
+ * recording, the address space of old segments can add up before that.
+ */
+public class FrameRecorder implements Runnable, AutoCloseable {
+  static final long FILE_MAGIC = 0x3130304345525652L; // "RVREC001"
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 16;
+  static final int RECORD_MAGIC = 0x4d415246; // "FRAM"
+  static final int RECORD_HEADER_SIZE = 88;
+  // FileChannel.map takes at most this many bytes
+  static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+  private static final int SLOTS = 8;
+
+  private final File directory;
+  private final long segmentSize;
+  private final BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(SLOTS);
+  private final BlockingQueue<Slot> full = new ArrayBlockingQueue<Slot>(SLOTS);
+  private volatile boolean running = true;
+  private Thread thread;
+
+  private int segmentIndex = 0;
+  private RandomAccessFile file;
+  private MappedByteBuffer segment;
+
+  private volatile long recorded = 0;
+  private volatile long dropped = 0;
+
+  /**
+   * A frame waiting to be written.
+   */
+  private static class Slot {
+    byte[] pixels = new byte[0];
+    int length;
+    int camera;
+    long frameId;
+    long frameTime;
+    long captureNanos;
+    double sonar;
+    int rows;
+    int cols;
+    int type;
+    final VisionResult result = new VisionResult();
+  }
+
+  /**
+   * @param directory where to write the segment files
+   * @param segmentSize the size of each segment file in bytes, at most
+   *   {@link #MAX_SEGMENT_SIZE}
+   */
+  public FrameRecorder(File directory, long segmentSize) {
+    if (segmentSize <= HEADER_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("Segment size must be between "
+        + (HEADER_SIZE + 1) + " and " + MAX_SEGMENT_SIZE + " bytes");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    for (int i = 0; i < SLOTS; i++) {
+      free.add(new Slot());
+    }
+  }
+
+  /**
+   * Start writing on a thread of the recorder.
+   */
+  public synchronized void start() {
+    thread = new Thread(this, "FrameRecorder");
+    thread.start();
+  }
+
+  /**
+   * Queue a frame to be recorded. Never blocks.
+   *
+   * @param camera which camera the frame came from
+   * @return false if the frame was dropped because the recorder is behind
+   */
+  public boolean offer(int camera, Frame frame, long captureNanos) {
+    Slot slot = free.poll();
+    if (slot == null) {
+      dropped++;
+      return false;
+    }
+    Mat image = frame.image;
+    int length = (int) (image.total() * image.elemSize());
+    if (slot.pixels.length < length) {
+      slot.pixels = new byte[length];
+    }
+    image.get(0, 0, slot.pixels);
+    slot.length = length;
+    slot.camera = camera;
+    slot.frameId = frame.frameId;
+    slot.frameTime = frame.frameTime;
+    slot.captureNanos = captureNanos;
+    slot.sonar = frame.result.sonarDistance;
+    slot.rows = image.rows();
+    slot.cols = image.cols();
+    slot.type = image.type();
+    slot.result.copyFrom(frame.result);
+    full.add(slot);
+    return true;
+  }
+
+  public long getRecorded() {
+    return recorded;
+  }
+
+  public long getDropped() {
+    return dropped;
+  }
+
+  public void run() {
+    try {
+      while (running || !full.isEmpty()) {
+        Slot slot = full.poll(100, TimeUnit.MILLISECONDS);
+        if (slot == null) continue;
+        try {
+          write(slot);
+          recorded++;
+        } finally {
+          free.add(slot);
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Shutting down
+    } catch (IOException ex) {
+      System.out.println("Error: FrameRecorder stopped: " + ex.getMessage());
+      ex.printStackTrace();
+    } finally {
+      closeSegment();
+    }
+  }
+
+  private void write(Slot slot) throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + slot.length;
+    // Keep room for the end marker
+    if (segment == null || segment.remaining() < recordSize + 4) {
+      openSegment(recordSize + 4);
+    }
+    segment.putInt(RECORD_MAGIC);
+    segment.putInt(recordSize);
+    segment.putInt(slot.camera);
+    segment.putInt(slot.rows);
+    segment.putInt(slot.cols);
+    segment.putInt(slot.type);
+    segment.putLong(slot.frameId);
+    segment.putLong(slot.frameTime);
+    segment.putLong(slot.captureNanos);
+    segment.putDouble(slot.sonar);
+    segment.putInt(slot.result.processed ? 1 : 0);
+    segment.putInt(slot.result.targetCount);
+    segment.putInt(slot.result.targetAcquired ? 1 : 0);
+    segment.putInt(slot.result.distance);
+    segment.putInt(slot.result.error);
+    segment.putFloat((float) slot.result.distanceInches);
+    segment.putFloat((float) slot.result.yawDegrees);
+    segment.putInt(0); // reserved
+    segment.put(slot.pixels, 0, slot.length);
+  }
+
+  private void openSegment(int minSize) throws IOException {
+    closeSegment();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create " + directory);
+    }
+    File path;
+    do {
+      path = new File(directory, String.format("frames-%06d.seg", segmentIndex++));
+    } while (path.exists());
+    file = new RandomAccessFile(path, "rw");
+    long size = Math.min(MAX_SEGMENT_SIZE,
+      Math.max(segmentSize, HEADER_SIZE + (long) minSize));
+    // The file is extended sparsely, so unused space costs nothing on disk
+    segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    segment.order(ByteOrder.LITTLE_ENDIAN);
+    segment.putLong(FILE_MAGIC);
+    segment.putInt(VERSION);
+    segment.putInt((int) size);
+  }
+
+  private void closeSegment() {
+    if (segment == null) return;
+    if (segment.remaining() >= 4) {
+      segment.putInt(0); // end marker
+    }
+    segment.force();
+    // There is no way to unmap it; the mapping goes when the buffer is
+    // garbage collected
+    segment = null;
+    try { file.close(); }
+    catch (IOException ex) { ex.printStackTrace(); }
+    file = null;
+  }
+
+  /**
+   * Write out what is queued and stop. Call after the stages feeding the
+   * recorder have stopped.
+   */
+  public void close() {
+    running = false;
+    Thread writer;
+    synchronized (this) {
+      writer = thread;
+    }
+    if (writer != null) {
+      try { writer.join(5000); }
+      catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+  }
+}
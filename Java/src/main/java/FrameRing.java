@@ -0,0 +1,143 @@
+/**
+ * A bounded ring of preallocated frames between one producer and one
+ * consumer, where the newest frame always wins.
+ *
+ * <p>
+ * The producer never waits: it writes into the next slot that the consumer is
+ * not holding, overwriting an unread frame if it has to. The consumer always
+ * gets the newest frame; frames that were published but never taken are
+ * counted as dropped.
+ */
+public class FrameRing {
+  private final String name;
+  private final Frame[] frames;
+  // Sequence number of the frame held by each slot, -1 when it holds none
+  private final long[] sequences;
+
+  private long lastPublished = 0;
+  private long lastTaken = 0;
+  private int latest = -1;
+  private int writing = -1;
+  private int reading = -1;
+  private int writeCursor = 0;
+
+  private long published = 0;
+  private long dropped = 0;
+
+  /**
+   * @param capacity number of frames in the ring, at least 2
+   */
+  public FrameRing(String name, int capacity) {
+    if (capacity < 2) {
+      throw new IllegalArgumentException("A FrameRing needs at least 2 frames");
+    }
+    this.name = name;
+    this.frames = new Frame[capacity];
+    this.sequences = new long[capacity];
+    for (int i = 0; i < capacity; i++) {
+      frames[i] = new Frame();
+      sequences[i] = -1;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Get a slot to write the next frame into. Never blocks. Must be followed
+   * by either commitWrite or abortWrite.
+   */
+  public synchronized Frame beginWrite() {
+    int slot = writeCursor;
+    if (slot == reading) {
+      slot = (slot + 1) % frames.length;
+    }
+    if (sequences[slot] > lastTaken) {
+      // Overwriting a frame nobody looked at
+      dropped++;
+    }
+    if (slot == latest) {
+      latest = -1;
+    }
+    sequences[slot] = -1;
+    writing = slot;
+    return frames[slot];
+  }
+
+  /**
+   * Publish the frame obtained from beginWrite.
+   */
+  public synchronized void commitWrite() {
+    sequences[writing] = ++lastPublished;
+    latest = writing;
+    writeCursor = (writing + 1) % frames.length;
+    writing = -1;
+    published++;
+    notifyAll();
+  }
+
+  /**
+   * Give back the frame obtained from beginWrite without publishing it.
+   */
+  public synchronized void abortWrite() {
+    writeCursor = writing;
+    writing = -1;
+  }
+
+  /**
+   * Wait for a frame newer than the last one taken and hold on to it until
+   * the next call to take or release. Older frames that were never taken
+   * are dropped.
+   *
+   * @return the newest frame, or null if none arrived before the timeout
+   */
+  public synchronized Frame take(long timeoutMs) throws InterruptedException {
+    reading = -1;
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (latest == -1 || sequences[latest] <= lastTaken) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        return null;
+      }
+      wait(left);
+    }
+    long newest = sequences[latest];
+    for (int i = 0; i < frames.length; i++) {
+      if (i != latest && sequences[i] > lastTaken && sequences[i] < newest) {
+        dropped++;
+      }
+    }
+    lastTaken = newest;
+    reading = latest;
+    return frames[reading];
+  }
+
+  /**
+   * Return the frame held since the last take to the producer.
+   */
+  public synchronized void release() {
+    reading = -1;
+  }
+
+  /**
+   * @return how many published frames are waiting to be taken
+   */
+  public synchronized int depth() {
+    int depth = 0;
+    for (int i = 0; i < frames.length; i++) {
+      if (sequences[i] > lastTaken) {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  public synchronized long getPublished() {
+    return published;
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+}
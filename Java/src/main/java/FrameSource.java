@@ -0,0 +1,42 @@
+import org.opencv.core.Mat;
+
+/**
+ * Anything frames can be grabbed from. Lets the capture stage work the same
+ * way with a camera or with any other source of frames.
+ */
+public interface FrameSource {
+
+  /**
+   * What {@link #getError()} returns when no frame came in time.
+   */
+  String TIMEOUT = "timed out";
+
+  /**
+   * Wait for the next frame and copy it into image.
+   *
+   * @return the frame time, or 0 if there was an error
+   */
+  long grabFrame(Mat image);
+
+  /**
+   * @return what went wrong in the last grab that returned 0, or
+   *   {@link #TIMEOUT} if no frame came in time
+   */
+  String getError();
+
+  /**
+   * Try to get a source that stopped delivering frames going again.
+   *
+   * @return false if the source can not be reconnected
+   */
+  boolean reconnect();
+
+  /**
+   * @return what was recorded with the last frame grabbed: its frame id,
+   *   capture time, sonar distance and pipeline results; or null for a live
+   *   source
+   */
+  VisionResult getRecorded();
+
+  String getName();
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.team1635.vision.LatencyHistogram;
+
+/**
+ * Keeps rolling statistics of how long frames take from the camera glass to
+ * where they leave the program, and writes them to a binary log once per
+ * window.
+ *
+ * <p>
+ * Each path a frame can leave by, a NetworkTables channel or the stream, is
+ * registered by name. For every frame that leaves, its capture, grab,
+ * processed and sent times are recorded. At the end of each window one
+ * record per path that had frames is appended to the log, and the path
+ * starts over.
+ *
+ * <p>
+ * The log starts with a header: magic {@link #FILE_MAGIC} (long), version
+ * (int), record size (int), System.currentTimeMillis at the start (long),
+ * number of paths (int), then each path's name as a short length and UTF-8
+ * bytes. Then come the {@value #RECORD_SIZE} byte records:
+ *
+ * <pre>
+ *  0 long  System.nanoTime at the end of the window
+ *  8 int   path
+ * 12 int   frames
+ * 16 float glass to sent, median ms
+ * 20 float glass to sent, 99th percentile ms
+ * 24 float glass to sent, max ms
+ * 28 float glass to sent, mean ms
+ * 32 float jitter: mean difference between one frame's latency and the
+ *          next one's, ms
+ * 36 float glass to grabbed, median ms
+ * 40 float grabbed to processed, median ms
+ * 44 float processed to sent, median ms
+ * 48 long  offset of the camera clock, ns (see FrameClock)
+ * </pre>
+ *
+ * Everything is little endian.
+ */
+public class LatencyTrace implements AutoCloseable {
+  static final long FILE_MAGIC = 0x31303054414c5652L; // "RVLAT001"
+  static final int VERSION = 1;
+  static final int RECORD_SIZE = 56;
+
+  /**
+   * The statistics of one path over the current window.
+   */
+  private static class Path {
+    final String name;
+    final FrameClock clock;
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram toGrab = new LatencyHistogram();
+    final LatencyHistogram toProcessed = new LatencyHistogram();
+    final LatencyHistogram toSent = new LatencyHistogram();
+    long lastTotal = -1;
+    long jitterSum = 0;
+    int jitterCount = 0;
+
+    Path(String name, FrameClock clock) {
+      this.name = name;
+      this.clock = clock;
+    }
+  }
+
+  private final File file;
+  private final List<Path> paths = new ArrayList<Path>();
+  private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE)
+    .order(ByteOrder.LITTLE_ENDIAN);
+  private FileChannel channel;
+  private boolean closed = false;
+  private long written = 0;
+
+  /**
+   * @param file the log to write; it is replaced
+   */
+  public LatencyTrace(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Add a path. Must be called before the first frame is recorded.
+   *
+   * @param clock gave the capture times of the frames, or null
+   * @return the path to pass to record
+   */
+  public synchronized int addPath(String name, FrameClock clock) {
+    paths.add(new Path(name, clock));
+    return paths.size() - 1;
+  }
+
+  /**
+   * Record a frame that left by a path. All times are System.nanoTime.
+   */
+  public synchronized void record(int path, long captureNanos,
+    long grabNanos, long processedNanos, long sentNanos) {
+    Path p = paths.get(path);
+    long total = sentNanos - captureNanos;
+    p.total.record(total);
+    p.toGrab.record(grabNanos - captureNanos);
+    p.toProcessed.record(processedNanos - grabNanos);
+    p.toSent.record(sentNanos - processedNanos);
+    if (p.lastTotal >= 0) {
+      p.jitterSum += Math.abs(total - p.lastTotal);
+      p.jitterCount++;
+    }
+    p.lastTotal = total;
+  }
+
+  /**
+   * End the window: write a record for each path that had frames, and start
+   * them over. Call about once a second.
+   */
+  public synchronized void endWindow(long nowNanos) {
+    if (closed) return;
+    try {
+      if (channel == null) open();
+      for (int i = 0; i < paths.size(); i++) {
+        Path p = paths.get(i);
+        if (p.total.getCount() == 0) continue;
+        record.clear();
+        record.putLong(nowNanos);
+        record.putInt(i);
+        record.putInt((int) p.total.getCount());
+        record.putFloat(ms(p.total.percentile(0.5)));
+        record.putFloat(ms(p.total.percentile(0.99)));
+        record.putFloat(ms(p.total.getMax()));
+        record.putFloat((float) (p.total.getMean() / 1e6));
+        record.putFloat(p.jitterCount == 0 ? 0
+          : (float) (p.jitterSum / (double) p.jitterCount / 1e6));
+        record.putFloat(ms(p.toGrab.percentile(0.5)));
+        record.putFloat(ms(p.toProcessed.percentile(0.5)));
+        record.putFloat(ms(p.toSent.percentile(0.5)));
+        record.putLong(p.clock == null ? 0 : p.clock.getOffset());
+        record.flip();
+        while (record.hasRemaining()) channel.write(record);
+        written++;
+      }
+    } catch (IOException ex) {
+      System.out.println("Error: can not write latency trace " + file + ": "
+        + ex.getMessage());
+    }
+    for (Path p : paths) {
+      p.total.reset();
+      p.toGrab.reset();
+      p.toProcessed.reset();
+      p.toSent.reset();
+      p.jitterSum = 0;
+      p.jitterCount = 0;
+    }
+  }
+
+  private static float ms(long nanos) {
+    return (float) (nanos / 1e6);
+  }
+
+  private void open() throws IOException {
+    channel = new FileOutputStream(file).getChannel();
+    int namesLength = 0;
+    for (Path p : paths) {
+      namesLength += 2 + p.name.getBytes(StandardCharsets.UTF_8).length;
+    }
+    ByteBuffer header = ByteBuffer.allocate(28 + namesLength)
+      .order(ByteOrder.LITTLE_ENDIAN);
+    header.putLong(FILE_MAGIC);
+    header.putInt(VERSION);
+    header.putInt(RECORD_SIZE);
+    header.putLong(System.currentTimeMillis());
+    header.putInt(paths.size());
+    for (Path p : paths) {
+      byte[] name = p.name.getBytes(StandardCharsets.UTF_8);
+      header.putShort((short) name.length);
+      header.put(name);
+    }
+    header.flip();
+    while (header.hasRemaining()) channel.write(header);
+  }
+
+  /**
+   * @return how many records were written
+   */
+  public synchronized long getWritten() {
+    return written;
+  }
+
+  public synchronized void close() {
+    closed = true;
+    if (channel == null) return;
+    try { channel.close(); }
+    catch (IOException ex) { ex.printStackTrace(); }
+    channel = null;
+  }
+}
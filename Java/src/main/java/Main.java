@@ -1,32 +1,39 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import edu.wpi.first.wpilibj.networktables.*;
 import edu.wpi.first.wpilibj.tables.*;
 import edu.wpi.cscore.*;
-import org.opencv.core.Mat;
-import org.opencv.core.Point;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
+import org.team1635.vision.PipelineConfig;
+import org.team1635.vision.CameraModel;
 import org.team1635.vision.VisionPipeline;
 
 public class Main {
 
-  private static boolean forwardCameraOn = true;
-  private static boolean processImage = true;
+  // Frames each ring between two stages can hold
+  private static final int FRAME_RING_SIZE = 3;
+  // How the cameras are told apart in recordings
+  private static final int CLIMB_CAMERA_ID = 0;
+  private static final int FRONT_CAMERA_ID = 1;
+  // The largest recording segment, which FileChannel.map can still map
+  private static final long MAX_SEGMENT_MB =
+    FrameRecorder.MAX_SEGMENT_SIZE >> 20;
 
   public static void main(String[] args) {
     // Loads our OpenCV library. This MUST be included
     System.loadLibrary("opencv_java310");
 
-    // Setup the filter for the VisionPipeline
-    // Find the values by experimenting with bradubv/OpenCVTutorial
-    double[] hueRange = { 0.0, 173.0 };
-    double[] satRange = { 0.0, 32.0 };
-    double[] valRange = { 249.0, 255.0 };
-
     // Connect NetworkTables, and get access to the publishing table
     NetworkTable.setClientMode();
-    // Set your team number here
-    NetworkTable.setTeam(1635);
+    // Connect to a NetworkTables server at this address instead of the
+    // robot's, for example one running on the same machine for testing
+    String ntServer = System.getProperty("vision.ntServer");
+    if (ntServer != null) {
+      NetworkTable.setIPAddress(ntServer);
+    } else {
+      // Set your team number here
+      NetworkTable.setTeam(1635);
+    }
     NetworkTable.initialize();
     NetworkTable nt = NetworkTable.getTable("SmartDashboard");
 
@@ -44,113 +51,276 @@ public class Main {
     // On the pi we're using USB cameras. 
 
     // USB Camera
-    // This gets the image from a USB camera 
-    // Usually this will be on device 0, but there are other overloads
-    // that can be used
-    UsbCamera camera = setUsbCamera(0, "frontCamera", inputStream);
-    UsbCamera climbCamera = setUsbCamera(1, "climbCamera", climbStream);
-
+    // Each camera is grabbed through a CvSink with a timeout, so a camera
+    // that stalls or is unplugged is backed off from and reconnected instead
+    // of grabbed in a tight loop.
     // Set the resolution for our camera, since this is over USB
-    //camera.setResolution(640,480); //getting ~8 FPS on the PI at this res
-    camera.setResolution(320,240); 
-    camera.setFPS(24);
-    climbCamera.setResolution(320,240); 
-    climbCamera.setFPS(24);
-
-    // This creates a CvSink for us to use. This grabs images from our 
-    // selected camera and will allow us to use those images in opencv
-    CvSink imageSink = new CvSink("CV Image Grabber");
-    imageSink.setSource(camera);
-    CvSink imageSinkClimb = new CvSink("ClimbCamera Image Grabber");
-    imageSinkClimb.setSource(climbCamera);
+    //640x480 is getting ~8 FPS on the PI
+    double grabTimeout = Double.parseDouble(
+      System.getProperty("vision.grabTimeout", "0.5"));
+    UsbCameraSource camera = new UsbCameraSource("frontCamera", 0, 
+      inputStream, 320, 240, 24, grabTimeout);
+    UsbCameraSource climbCamera = new UsbCameraSource("climbCamera", 1, 
+      climbStream, 320, 240, 24, grabTimeout);
 
     // This creates a CvSource to use. This will take in a Mat image that 
     // has had OpenCV operations 
+    // The stream has its own resolution and rate, whatever the cameras run at
+    int streamWidth = Integer.getInteger("vision.streamWidth", 320);
+    int streamHeight = Integer.getInteger("vision.streamHeight", 240);
+    int streamFps = Integer.getInteger("vision.streamFps", 24);
     CvSource imageSource = new CvSource("CV Image Source", 
     //    VideoMode.PixelFormat.kMJPEG, 640, 480, 30);
-    VideoMode.PixelFormat.kMJPEG, 320, 240, 24);
+    VideoMode.PixelFormat.kMJPEG, streamWidth, streamHeight, streamFps);
     MjpegServer cvStream = new MjpegServer("CV Image Stream", 1186);
     cvStream.setSource(imageSource);
 
-    // All Mats and Lists should be stored outside the loop to avoid allocations
-    // as they are expensive to create
-    Mat inputImage = new Mat();
-    Mat hsv = new Mat();
-
-    //Practice Bot camera needs this target tracking
-    //Point targetLeftTop = new Point(205, 104); 
-    //Point targetLeftBot = new Point(205, 121); 
-    //Point targetRightBot = new Point(286, 121); 
-    //Point targetRightTop = new Point(286, 104); 
-
-    //2017 Competition robot needs this target tracking
-    Point targetLeftTop = new Point(183, 79); 
-    Point targetLeftBot = new Point(183, 62); 
-    Point targetRightBot = new Point(248, 62); 
-    Point targetRightTop = new Point(248, 79); 
-
-    Scalar orange = new Scalar(0, 165, 255);
-    
-    Sonar sonar = new Sonar();
-    Thread distThread = new Thread(sonar);
+    // In multi camera mode both cameras run their own pipeline all the time
+    // and the dashboard only picks which one gets streamed
+    boolean multiCamera = "true".equals(
+      System.getProperty("vision.multiCamera", "false"));
+
+    // Only search around the last known target once we have a lock
+    boolean tracking = "true".equals(
+      System.getProperty("vision.tracking", "false"));
+
+    // hsv is the cvtColor + inRange reference, lut the single pass table
+    VisionPipeline.ThresholdMode thresholdMode = VisionPipeline.ThresholdMode
+      .valueOf(System.getProperty("vision.threshold", "lut").toUpperCase());
+    int lutQuantization = Integer.getInteger("vision.lutQuantization", 0);
+    // Find candidates on a frame scaled down this many times by 2
+    int pyramidLevels = Integer.getInteger("vision.pyramidLevels", 0);
+    // Only trace the blobs of the mask that are big enough to be a strip
+    boolean componentPrefilter = Boolean.parseBoolean(
+      System.getProperty("vision.componentPrefilter", "true"));
+    // Filter the contours on all cores in frames with at least this many
+    int parallelContours = Integer.getInteger("vision.parallelContours", 
+      VisionPipeline.DEFAULT_PARALLEL_CONTOURS);
+    // Time each step of the pipeline and publish the percentiles
+    boolean stats = Boolean.getBoolean("vision.stats");
+    // Correct the strip corners for lens distortion before measuring them
+    boolean undistort = Boolean.getBoolean("vision.undistort");
+
+    // The pipeline keeps its working memory between frames, so create it once
+    final VisionPipeline climbPipeline = new VisionPipeline();
+    climbPipeline.setTracking(tracking);
+    climbPipeline.setThresholdMode(thresholdMode, lutQuantization);
+    climbPipeline.setPyramidLevels(pyramidLevels);
+    climbPipeline.setParallelContourThreshold(parallelContours);
+    climbPipeline.setComponentPrefilter(componentPrefilter);
+    climbPipeline.setStatsEnabled(stats);
+    climbPipeline.setCameraModel(loadCameraModel("vision.climbCameraModel"));
+    climbPipeline.setUndistort(undistort);
+    // With one camera processed, the front pipeline only runs while the
+    // climb camera is down
+    final VisionPipeline frontPipeline = new VisionPipeline();
+    frontPipeline.setTracking(tracking);
+    frontPipeline.setThresholdMode(thresholdMode, lutQuantization);
+    frontPipeline.setPyramidLevels(pyramidLevels);
+    frontPipeline.setParallelContourThreshold(parallelContours);
+    frontPipeline.setComponentPrefilter(componentPrefilter);
+    frontPipeline.setStatsEnabled(stats);
+    frontPipeline.setCameraModel(loadCameraModel("vision.frontCameraModel"));
+    frontPipeline.setUndistort(undistort);
+
+    // The HSV ranges and contour filter start from the defaults in
+    // PipelineConfig and can be tuned live under SmartDashboard/VisionConfig
+    ConfigListener configListener = new ConfigListener(PipelineConfig.DEFAULTS);
+    configListener.addPipeline(climbPipeline);
+    configListener.addPipeline(frontPipeline);
+    configListener.attach(nt.getSubTable("VisionConfig"));
+
+    // The sonar runs off its GPIO edge events, or off a simulated sensor on
+    // a machine without the pins
+    SonarGpio sonarGpio = "simulated".equals(System.getProperty("vision.sonar", "gpio"))
+      ? new SimulatedSonarGpio(24, 0.5, 0.05, 1635) : new Pi4jSonarGpio();
+    double sonarRate = Double.parseDouble(System.getProperty("vision.sonarRate", "15"));
+    int sonarWindow = Integer.getInteger("vision.sonarWindow", 5);
+    final Sonar sonar = new Sonar(sonarGpio, sonarRate, sonarWindow);
+    Thread distThread = new Thread(sonar, "Sonar");
+    distThread.setDaemon(true);
     distThread.start();
-    
-    // Infinitely process image
-    while (true) {
-      // Grab a frame. If it has a frame time of 0, there was an error.
-      // Just skip and continue
-      long frameTime;
-      if (forwardCameraOn) {
-          frameTime = imageSinkClimb.grabFrame(inputImage);
-      } else {
-          frameTime = imageSink.grabFrame(inputImage);    	  
-      }
-      if (frameTime == 0) continue;
-
-      if (forwardCameraOn && processImage) {
-        // Do OpenCV operations on the provided image
-	try {
-          VisionPipeline pipeline = new VisionPipeline();
-          pipeline.setFilter(hueRange, satRange, valRange);
-          pipeline.process(inputImage);
-          nt.putNumber("VisionTargetCount", pipeline.getTargetCandidateCount());
-          nt.putBoolean("VisionTargetAcquired", pipeline.getTargetAcquired());
-          nt.putNumber("VisionDistance", pipeline.getDistance());
-          nt.putNumber("VisionError", pipeline.getError());
-        } catch (Exception ex) {
-	  System.out.println("Error: VisionPipeline crashed: " + ex.getMessage());
-	  ex.printStackTrace();
-	}
+
+    // Each step runs on its own thread, handing frames over through rings of
+    // preallocated Mats. A slow stage makes the ones before it drop frames
+    // instead of waiting, so every stage works on the freshest frame.
+    FrameRing frontRing = new FrameRing("frontCamera", FRAME_RING_SIZE);
+    FrameRing climbRing = new FrameRing("climbCamera", FRAME_RING_SIZE);
+    FrameRing frontStreamRing = new FrameRing("frontStream", FRAME_RING_SIZE);
+    FrameRing climbStreamRing = new FrameRing("climbStream", FRAME_RING_SIZE);
+
+    // Frames can be played back from a recording instead of the cameras
+    FrameSource frontSource = camera;
+    FrameSource climbSource = climbCamera;
+    String replay = System.getProperty("vision.replay");
+    if (replay != null) {
+      boolean realTime = !"max".equals(
+        System.getProperty("vision.replaySpeed", "realtime"));
+      try {
+        frontSource = new ReplaySource("frontCamera", new File(replay), 
+          FRONT_CAMERA_ID, realTime, true);
+        climbSource = new ReplaySource("climbCamera", new File(replay), 
+          CLIMB_CAMERA_ID, realTime, true);
+      } catch (IOException ex) {
+        System.out.println("Error: can not replay " + replay + ": " 
+          + ex.getMessage());
+        return;
       }
+    }
 
-      if (forwardCameraOn) {
-        Imgproc.line(inputImage, targetLeftTop, targetLeftBot, orange, 2);
-        Imgproc.line(inputImage, targetLeftBot, targetRightBot, orange, 2);
-        Imgproc.line(inputImage, targetRightBot, targetRightTop, orange, 2);
+    CaptureStage frontCapture = new CaptureStage(frontSource, frontRing);
+    CaptureStage climbCapture = new CaptureStage(climbSource, climbRing);
+    // Send results at most this many times a second, and only what changed
+    double telemetryRate = Double.parseDouble(
+      System.getProperty("vision.telemetryRate", "50"));
+    boolean telemetryFlush = Boolean.getBoolean("vision.telemetryFlush");
+    final TelemetryStage telemetry = new TelemetryStage(nt, sonar, 
+      telemetryRate, telemetryFlush);
+
+    // The camera called forward on the dashboard is the climb camera. Its
+    // results keep going to the keys the robot reads.
+    int climbChannel = telemetry.addChannel(
+      multiCamera ? "climbCamera" : null, true);
+    int frontChannel = telemetry.addChannel("frontCamera", false);
+    // Filter the targets over frames and send them predicted to the time
+    // they are sent
+    telemetry.setTargetTracker(Boolean.getBoolean("vision.targetTracker"));
+    final ProcessStage climbProcess = new ProcessStage("climbCamera", 
+      climbPipeline, climbRing, climbStreamRing, telemetry, climbChannel, 
+      true, multiCamera);
+    final ProcessStage frontProcess = new ProcessStage("frontCamera", 
+      multiCamera ? frontPipeline : null, frontRing, frontStreamRing, 
+      telemetry, frontChannel, false, multiCamera);
+    final StreamStage stream = new StreamStage(climbStreamRing, 
+      frontStreamRing, telemetry, imageSource, cvStream, streamWidth, 
+      streamHeight, streamFps, Boolean.getBoolean("vision.streamAlways"));
+    climbProcess.setStream(stream);
+    frontProcess.setStream(stream);
+
+    // While one camera is down the other one is processed and streamed in
+    // its place, and its results also go to the down camera's keys
+    climbProcess.setFailover(frontCapture, frontChannel, null);
+    frontProcess.setFailover(climbCapture, climbChannel, 
+      multiCamera ? null : frontPipeline);
+    stream.setFailover(climbCapture, frontCapture);
+
+    // Trace how long frames take from the camera to NetworkTables and to
+    // the stream, a record per path and second
+    String latencyTrace = System.getProperty("vision.latencyTrace");
+    final LatencyTrace trace = latencyTrace == null ? null 
+      : new LatencyTrace(new File(latencyTrace));
+    if (trace != null) {
+      telemetry.setLatencyTrace(climbChannel, trace, 
+        trace.addPath("climbCamera", climbCapture.getClock()));
+      telemetry.setLatencyTrace(frontChannel, trace, 
+        trace.addPath("frontCamera", frontCapture.getClock()));
+      stream.setLatencyTrace(trace, 
+        trace.addPath("climbCamera stream", climbCapture.getClock()),
+        trace.addPath("frontCamera stream", frontCapture.getClock()));
+    }
+
+    // Let the cameras go up to 640x480 for far targets, and down when the
+    // pipeline can not keep up
+    if (Boolean.getBoolean("vision.governor") && replay == null) {
+      ModeGovernor.Mode[] modes = ModeGovernor.Mode.parseList(System.getProperty(
+        "vision.governorModes", "320x240@15,320x240@24,640x480@15,640x480@24"));
+      int start = ModeGovernor.indexOf(modes, 320, 240, 24);
+      if (start < 0) {
+        System.out.println("Error: vision.governorModes needs 320x240@24");
+      } else {
+        climbProcess.setGovernor(new ModeGovernor("climbCamera", climbCamera, 
+          modes, start));
+        frontProcess.setGovernor(new ModeGovernor("frontCamera", camera, 
+          modes, start));
       }
+    }
+
+    // Match each frame with the sonar reading of when it was grabbed
+    climbProcess.setSonar(sonar.getSamples());
+    frontProcess.setSonar(sonar.getSamples());
+
+    String record = System.getProperty("vision.record");
+    long segmentMB = Long.getLong("vision.recordSegmentMB", 256);
+    if (record != null && (segmentMB < 1 || segmentMB > MAX_SEGMENT_MB)) {
+      System.out.println("Error: vision.recordSegmentMB must be between 1 "
+        + "and " + MAX_SEGMENT_MB + ", not recording");
+      record = null;
+    }
+    final FrameRecorder recorder = record == null ? null : new FrameRecorder(
+      new File(record), segmentMB << 20);
+    if (recorder != null) {
+      climbProcess.setRecorder(recorder, CLIMB_CAMERA_ID);
+      frontProcess.setRecorder(recorder, FRONT_CAMERA_ID);
+      recorder.start();
+    }
+
+    if (multiCamera) {
+      // One core per pipeline, one for grabbing and one for everything else
+      climbProcess.setCpu(1);
+      frontProcess.setCpu(2);
+      climbCapture.setCpu(3);
+      frontCapture.setCpu(3);
+      stream.setCpu(0);
+      telemetry.setCpu(0);
+    }
+
+    final Stage[] stages = { frontCapture, climbCapture, climbProcess, 
+      frontProcess, stream, telemetry };
+    for (Stage stage : stages) {
+      telemetry.monitor(stage);
+    }
+    telemetry.monitor(frontRing);
+    telemetry.monitor(climbRing);
+    telemetry.monitor(frontStreamRing);
+    telemetry.monitor(climbStreamRing);
+    if (stats) {
+      telemetry.monitor("climbCamera", climbPipeline.getStats());
+      telemetry.monitor("frontCamera", frontPipeline.getStats());
+    }
 
-      // Write the image that you want to restream
-      imageSource.putFrame(inputImage);
+    final Thread[] threads = new Thread[stages.length];
+    for (int i = 0; i < stages.length; i++) {
+      threads[i] = stages[i].start();
+    }
 
-      double distance = sonar.getDistance();  
-      nt.putNumber("Sonar Distance", distance);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Stage stage : stages) {
+        stage.stop();
+      }
+      sonar.stop();
+      // Let the pipelines finish their frame before freeing their memory
+      for (Thread thread : threads) {
+        try { thread.join(1000); }
+        catch (InterruptedException ex) { ex.printStackTrace(); }
+      }
+      climbPipeline.close();
+      frontPipeline.close();
+      if (recorder != null) recorder.close();
+      if (trace != null) trace.close();
+    }));
 
-      //read values from the SmartDashboard
-      forwardCameraOn = nt.getBoolean("forwardCameraOn", true);
-      processImage = nt.getBoolean("processImage", true);
+    for (Thread thread : threads) {
+      try { thread.join(); }
+      catch (InterruptedException ex) { ex.printStackTrace(); }
     }
-    //TODO: figure out how to release the GPIO pins
-    // gpio.shutdown();
   }
 
-  private static UsbCamera setUsbCamera(int cameraId, 
-    String cameraName, MjpegServer server) {
-    // This gets the image from a USB camera 
-    // Usually this will be on device 0, but there are other overloads
-    // that can be used
-    UsbCamera camera = new UsbCamera(cameraName, cameraId);
-    server.setSource(camera);
-    return camera;
+  /**
+   * Load the camera model named by a property, or the default one if the
+   * property is not set or the file can not be read.
+   */
+  private static CameraModel loadCameraModel(String property) {
+    String path = System.getProperty(property);
+    if (path == null) return CameraModel.DEFAULT;
+    try {
+      CameraModel model = CameraModel.load(new File(path));
+      System.out.println("Camera model " + path + ": " + model);
+      return model;
+    } catch (IOException ex) {
+      System.out.println("Error: can not load camera model " + path + ": "
+        + ex.getMessage());
+      return CameraModel.DEFAULT;
+    }
   }
 
 }
@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+/**
+ * The median of the last few values. A single wild value, or a few in a row
+ * as long as they are less than half the window, does not move it.
+ */
+public class MedianFilter {
+  private final double[] window;
+  private final double[] sorted;
+  private int count = 0;
+  private int next = 0;
+
+  /**
+   * @param size how many values to take the median of, best odd
+   */
+  public MedianFilter(int size) {
+    window = new double[Math.max(size, 1)];
+    sorted = new double[window.length];
+  }
+
+  /**
+   * Add a value, dropping the oldest one if the window is full.
+   *
+   * @return the median with the new value
+   */
+  public double add(double value) {
+    window[next] = value;
+    next = (next + 1) % window.length;
+    if (count < window.length) {
+      count++;
+    }
+    return median();
+  }
+
+  /**
+   * @return the median of the values in the window, 0 if there are none
+   */
+  public double median() {
+    if (count == 0) {
+      return 0;
+    }
+    System.arraycopy(window, 0, sorted, 0, count);
+    Arrays.sort(sorted, 0, count);
+    if (count % 2 == 1) {
+      return sorted[count / 2];
+    }
+    return (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public void reset() {
+    count = 0;
+    next = 0;
+  }
+}
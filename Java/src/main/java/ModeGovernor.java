@@ -0,0 +1,211 @@
+import org.team1635.vision.VisionPipeline;
+
+/**
+ * Switches a camera between video modes while it runs, from how long the
+ * pipeline takes per frame and how big the target is.
+ *
+ * <p>
+ * The modes form a ladder from the cheapest to the most expensive. When the
+ * pipeline takes most of a frame period, the camera goes one mode down.
+ *
+ * <p>
+ * The pipeline drops blobs too small to tell from noise, and that floor is a
+ * number of pixels of the frame, so in a wider frame it is a narrower target
+ * in reference pixels: a wider mode finds the target from further away.
+ * When the target is close to the floor of the current mode, so about to be
+ * lost as it gets further, and the next mode up is wider and would still
+ * leave headroom, the camera goes one mode up. Once the target would be well
+ * clear of the floor of the mode below, it goes back down towards the mode
+ * it started in. After each switch the governor waits a while before
+ * switching again, so it does not flap between two modes.
+ *
+ * <p>
+ * The pipeline copes with any resolution and gives its outputs in pixels of
+ * a frame 320 wide, so nothing downstream notices a switch.
+ */
+public class ModeGovernor {
+  // Switch down when the pipeline takes more than this much of a period
+  private static final double HIGH_LOAD = 0.85;
+  // Only switch up if the next mode is expected to take less than this
+  private static final double LOW_LOAD = 0.6;
+  // A target narrower than this times the narrowest the pipeline finds is
+  // about to be lost, and one wider than BIG_TARGET times that of the mode
+  // below would still be found there
+  private static final double SMALL_TARGET = 1.5;
+  private static final double BIG_TARGET = 2;
+  private static final long DWELL_NANOS = 2000000000L;
+  // How much of each new frame goes into the average processing time
+  private static final double SMOOTHING = 0.1;
+  // Frames to average before deciding anything in a new mode
+  private static final int WARMUP_FRAMES = 10;
+
+  /**
+   * A width, height and frame rate.
+   */
+  public static class Mode {
+    final int width;
+    final int height;
+    final int fps;
+
+    public Mode(int width, int height, int fps) {
+      this.width = width;
+      this.height = height;
+      this.fps = fps;
+    }
+
+    /**
+     * @param text like 640x480@15
+     */
+    public static Mode parse(String text) {
+      String[] sizeAndFps = text.trim().split("@");
+      String[] size = sizeAndFps[0].split("x");
+      if (sizeAndFps.length != 2 || size.length != 2) {
+        throw new IllegalArgumentException("Not a video mode: " + text);
+      }
+      return new Mode(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+        Integer.parseInt(sizeAndFps[1]));
+    }
+
+    /**
+     * @param text modes separated by commas
+     */
+    public static Mode[] parseList(String text) {
+      String[] parts = text.split(",");
+      Mode[] modes = new Mode[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        modes[i] = parse(parts[i]);
+      }
+      return modes;
+    }
+
+    long periodNanos() {
+      return 1000000000L / fps;
+    }
+
+    long pixels() {
+      return (long) width * height;
+    }
+
+    public String toString() {
+      return width + "x" + height + "@" + fps;
+    }
+  }
+
+  private final String name;
+  private final UsbCameraSource camera;
+  private final Mode[] modes;
+  private final int base;
+  private int current;
+  private double averageNanos;
+  private int frames;
+  private long lastSwitch;
+  private long switches = 0;
+
+  /**
+   * @param modes from the cheapest to the most expensive
+   * @param start the index of the mode the camera is in now
+   */
+  public ModeGovernor(String name, UsbCameraSource camera, Mode[] modes, 
+    int start) {
+    if (start < 0 || start >= modes.length) {
+      throw new IllegalArgumentException("No mode " + start);
+    }
+    this.name = name;
+    this.camera = camera;
+    this.modes = modes;
+    this.base = start;
+    this.current = start;
+    this.lastSwitch = System.nanoTime();
+  }
+
+  /**
+   * @return the index of the first mode with that size and rate, or -1
+   */
+  public static int indexOf(Mode[] modes, int width, int height, int fps) {
+    for (int i = 0; i < modes.length; i++) {
+      if (modes[i].width == width && modes[i].height == height
+        && modes[i].fps == fps) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Called by the process stage after each frame.
+   *
+   * @param processNanos how long the pipeline took
+   * @param targetWidth width of the target in reference pixels, or 0 if
+   *   there is none
+   * @param minTargetWidth the narrowest target the pipeline finds in this
+   *   mode, in reference pixels
+   */
+  public void frameProcessed(long nowNanos, long processNanos, int targetWidth,
+    double minTargetWidth) {
+    averageNanos = frames == 0 ? processNanos
+      : averageNanos + (processNanos - averageNanos) * SMOOTHING;
+    frames++;
+    if (frames < WARMUP_FRAMES || nowNanos - lastSwitch < DWELL_NANOS) return;
+
+    double load = averageNanos / modes[current].periodNanos();
+    if (load > HIGH_LOAD && current > 0) {
+      switchTo(current - 1, nowNanos, load);
+    } else if (current < modes.length - 1 && expectedLoad(current + 1) < LOW_LOAD
+      && (current < base || (targetWidth > 0
+        && targetWidth < minTargetWidth * SMALL_TARGET
+        && floorIn(current + 1, minTargetWidth) < minTargetWidth))) {
+      switchTo(current + 1, nowNanos, load);
+    } else if (current > base
+      && targetWidth > floorIn(current - 1, minTargetWidth) * BIG_TARGET) {
+      switchTo(current - 1, nowNanos, load);
+    }
+  }
+
+  /**
+   * @param minTargetWidth the narrowest target found in the current mode
+   * @return the narrowest target that would be found in another mode. The
+   *   pipeline keeps its minimum sizes in frame pixels for frames wider than
+   *   the reference, and in reference pixels for the others.
+   */
+  private double floorIn(int mode, double minTargetWidth) {
+    return minTargetWidth * overReference(modes[current])
+      / overReference(modes[mode]);
+  }
+
+  private static double overReference(Mode mode) {
+    return Math.max(1, mode.width / VisionPipeline.REFERENCE_WIDTH);
+  }
+
+  /**
+   * @return how much of a period of a mode the pipeline would take, if its
+   *   time grows with the number of pixels
+   */
+  private double expectedLoad(int mode) {
+    double nanos = averageNanos * modes[mode].pixels() / modes[current].pixels();
+    return nanos / modes[mode].periodNanos();
+  }
+
+  private void switchTo(int mode, long nowNanos, double load) {
+    Mode next = modes[mode];
+    if (!camera.setVideoMode(next.width, next.height, next.fps)) {
+      System.out.println("Error: " + name + " can not switch to " + next);
+      // Do not try again right away
+      lastSwitch = nowNanos;
+      return;
+    }
+    System.out.println("Governor " + name + ": " + modes[current] + " -> "
+      + next + String.format(" (load %.2f)", load));
+    current = mode;
+    frames = 0;
+    lastSwitch = nowNanos;
+    switches++;
+  }
+
+  public Mode getMode() {
+    return modes[current];
+  }
+
+  public long getSwitches() {
+    return switches;
+  }
+}
@@ -0,0 +1,59 @@
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * The sonar on the GPIO pins of the Pi, trigger on GPIO 4 and echo on
+ * GPIO 5.
+ *
+ * <p>
+ * The echo edges come from the pi4j edge listener, which wakes up on the pin
+ * interrupt, so nothing polls the pin. The edge is timestamped as soon as the
+ * listener runs.
+ */
+public class Pi4jSonarGpio implements SonarGpio {
+  // 10 microsec to trigger the module (8 ultrasound bursts at 40 kHz)
+  // https://www.dropbox.com/s/615w1321sg9epjj/hc-sr04-ultrasound-timing-diagram.png
+  private static final long TRIGGER_PULSE_NANOS = 10 * 1000;
+
+  private final GpioController gpio;
+  private final GpioPinDigitalOutput trigPin;
+  private final GpioPinDigitalInput echoPin;
+  private volatile EchoListener listener;
+
+  public Pi4jSonarGpio() {
+    System.out.println("GPIO Control Starting");
+
+    gpio = GpioFactory.getInstance();
+    trigPin = gpio.provisionDigitalOutputPin(RaspiPin.GPIO_04, "Trig", PinState.LOW);
+    echoPin = gpio.provisionDigitalInputPin(RaspiPin.GPIO_05, "Echo");
+    echoPin.addListener((GpioPinListenerDigital) event -> {
+      long now = System.nanoTime();
+      EchoListener current = listener;
+      if (current != null) {
+        current.echoEdge(event.getState().isHigh(), now);
+      }
+    });
+  }
+
+  public void setEchoListener(EchoListener listener) {
+    this.listener = listener;
+  }
+
+  public void trigger() {
+    trigPin.high();
+    // Too short to sleep for, and short enough to not matter
+    long end = System.nanoTime() + TRIGGER_PULSE_NANOS;
+    while (System.nanoTime() < end);
+    trigPin.low();
+  }
+
+  public void close() {
+    echoPin.removeAllListeners();
+    trigPin.low();
+  }
+}
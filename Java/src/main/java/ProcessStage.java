@@ -0,0 +1,208 @@
+import org.team1635.vision.QuadBuffer;
+import org.team1635.vision.VisionPipeline;
+
+/**
+ * Takes the newest frame of one camera, runs the vision pipeline on it and
+ * hands the frame and its results to the stream and telemetry stages.
+ *
+ * <p>
+ * Frames that arrive while the pipeline is busy are dropped by the ring, so
+ * the pipeline always works on the freshest image there is.
+ */
+public class ProcessStage extends Stage {
+  private static final long TAKE_TIMEOUT_MS = 250;
+
+  private final VisionPipeline pipeline;
+  private final FrameRing input;
+  private final FrameRing streamRing;
+  private final TelemetryStage telemetry;
+  private final int channel;
+  private final boolean forward;
+  private final boolean alwaysProcess;
+  private FrameRecorder recorder;
+  private int cameraId;
+  private SonarRing sonar;
+  private StreamStage stream;
+  private ModeGovernor governor;
+  private CaptureStage otherCapture;
+  private int otherChannel;
+  private VisionPipeline standby;
+  // Replayed frames whose results were compared with the recorded ones, and
+  // how many of them differed
+  private volatile long replayChecked = 0;
+  private volatile long replayMismatches = 0;
+
+  /**
+   * @param camera name of the camera the frames come from
+   * @param pipeline the pipeline to run, or null to only stream the camera
+   * @param input frames from the camera
+   * @param streamRing where frames go to be annotated and streamed
+   * @param channel the telemetry channel to publish the results to
+   * @param forward whether this is the camera selected by forwardCameraOn
+   * @param alwaysProcess run the pipeline even when the camera is not the 
+   *   one selected on the dashboard
+   */
+  public ProcessStage(String camera, VisionPipeline pipeline, FrameRing input,
+    FrameRing streamRing, TelemetryStage telemetry, int channel, 
+    boolean forward, boolean alwaysProcess) {
+    super("Process " + camera);
+    this.pipeline = pipeline;
+    this.input = input;
+    this.streamRing = streamRing;
+    this.telemetry = telemetry;
+    this.channel = channel;
+    this.forward = forward;
+    this.alwaysProcess = alwaysProcess;
+  }
+
+  /**
+   * Record every frame this stage takes, with its results.
+   *
+   * @param cameraId tells this camera's frames apart in the recording
+   */
+  public void setRecorder(FrameRecorder recorder, int cameraId) {
+    this.recorder = recorder;
+    this.cameraId = cameraId;
+  }
+
+  /**
+   * Attach to each frame the sonar distance at the time it was grabbed.
+   */
+  public void setSonar(SonarRing sonar) {
+    this.sonar = sonar;
+  }
+
+  /**
+   * Only copy frames to the stream ring when the stream wants one, so
+   * nothing is copied while nobody watches and no more often than the
+   * stream rate.
+   */
+  public void setStream(StreamStage stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Let a governor switch the camera's mode from how long the pipeline
+   * takes and how big the target is.
+   */
+  public void setGovernor(ModeGovernor governor) {
+    this.governor = governor;
+  }
+
+  /**
+   * Take over for the other camera while it is down: stream this camera in
+   * its place, and publish the results to its channel as well.
+   *
+   * @param other grabs the other camera
+   * @param otherChannel the telemetry channel of the other camera
+   * @param standby the pipeline to run while covering, if this stage has
+   *   none of its own
+   */
+  public void setFailover(CaptureStage other, int otherChannel, 
+    VisionPipeline standby) {
+    this.otherCapture = other;
+    this.otherChannel = otherChannel;
+    this.standby = standby;
+  }
+
+  protected boolean step() throws InterruptedException {
+    Frame frame = input.take(TAKE_TIMEOUT_MS);
+    if (frame == null) return false;
+
+    try {
+      frame.result.frameId = frame.frameId;
+      frame.result.captureNanos = frame.captureNanos;
+      frame.result.grabNanos = frame.grabNanos;
+      if (frame.replayed) {
+        // What the sonar read on the field, not what it reads now
+        frame.result.sonarDistance = frame.recorded.sonarDistance;
+      } else if (sonar != null) {
+        double distance = sonar.distanceAt(frame.grabNanos);
+        frame.result.sonarDistance = Double.isNaN(distance) ? 0 : distance;
+      }
+      boolean selected = telemetry.isForwardCameraOn() == forward;
+      boolean covering = !selected && otherCapture != null 
+        && otherCapture.isDown();
+      boolean streamed = selected || covering;
+      VisionPipeline active = pipeline != null ? pipeline 
+        : covering ? standby : null;
+      if (active != null && telemetry.isProcessImage() 
+        && (streamed || alwaysProcess)) {
+        long start = System.nanoTime();
+        active.process(frame.image);
+        if (governor != null) {
+          long end = System.nanoTime();
+          governor.frameProcessed(end, end - start, active.getDistance(),
+            active.getMinTargetWidth());
+        }
+        frame.result.copyFrom(active);
+        frame.result.processedNanos = System.nanoTime();
+        if (frame.replayed && frame.recorded.processed) {
+          checkReplay(frame);
+        }
+        copyStrips(frame, active);
+        telemetry.publish(channel, frame.result);
+        if (covering) telemetry.publish(otherChannel, frame.result);
+      }
+
+      if (recorder != null) {
+        recorder.offer(cameraId, frame, frame.grabNanos);
+      }
+
+      if (streamed && (stream == null || stream.claimFrame(System.nanoTime()))) {
+        if (frame.result.processedNanos == 0) {
+          frame.result.processedNanos = System.nanoTime();
+        }
+        Frame out = streamRing.beginWrite();
+        frame.copyTo(out);
+        out.annotate = forward;
+        streamRing.commitWrite();
+      }
+    } finally {
+      input.release();
+    }
+    return true;
+  }
+
+  private void checkReplay(Frame frame) {
+    VisionResult now = frame.result;
+    VisionResult then = frame.recorded;
+    replayChecked++;
+    if (now.targetAcquired != then.targetAcquired || (now.targetAcquired
+      && (now.distance != then.distance || now.error != then.error))) {
+      replayMismatches++;
+    }
+  }
+
+  /**
+   * @return how many replayed frames had their results compared with the
+   *   recorded ones
+   */
+  public long getReplayChecked() {
+    return replayChecked;
+  }
+
+  /**
+   * @return how many replayed frames found another target, or the same one
+   *   somewhere else, than when they were recorded
+   */
+  public long getReplayMismatches() {
+    return replayMismatches;
+  }
+
+  private void copyStrips(Frame frame, VisionPipeline active) {
+    frame.strips = 0;
+    addStrip(frame, active, active.getLeftStripSlot());
+    addStrip(frame, active, active.getRightStripSlot());
+  }
+
+  private void addStrip(Frame frame, VisionPipeline active, int slot) {
+    if (slot < 0) return;
+    QuadBuffer quads = active.getQuads();
+    int i = frame.strips++ * 8;
+    for (int corner = 0; corner < 4; corner++) {
+      frame.stripCorners[i++] = quads.getX(slot, corner);
+      frame.stripCorners[i++] = quads.getY(slot, corner);
+    }
+  }
+}
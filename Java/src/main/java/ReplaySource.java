@@ -0,0 +1,210 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+
+/**
+ * Plays back the frames of one camera recorded by FrameRecorder, standing in
+ * for the CvSink of that camera.
+ *
+ * <p>
+ * The segment files are memory mapped, so reading a frame is one copy from
+ * the page cache into the Mat. Frames come either at the pace they were
+ * recorded at, or as fast as they are asked for.
+ *
+ * <p>
+ * With each frame come the frame id, capture time, sonar distance and
+ * pipeline results recorded with it, so a replay runs on the sonar readings
+ * of the field and its results can be checked against the recorded ones.
+ *
+ * <p>
+ * When a whole pass over the segments has no frame of the camera, for
+ * example because it was unplugged while recording, the replay ends even if
+ * it loops.
+ */
+public class ReplaySource implements FrameSource {
+  private final String name;
+  private final File[] segments;
+  private final int camera;
+  private final boolean realTime;
+  private final boolean loop;
+
+  private int segmentIndex = -1;
+  private MappedByteBuffer segment;
+  // Whether the current pass over the segments had a frame of the camera
+  private boolean playedThisPass = false;
+  private boolean ended = false;
+  private byte[] pixels = new byte[0];
+
+  // Pace of the replay: the first frame time and when we returned it
+  private long firstFrameTime = 0;
+  private long firstFrameNanos = 0;
+
+  // The record of the last frame returned
+  private long recordFrameTime;
+  private final VisionResult recorded = new VisionResult();
+
+  /**
+   * @param directory where FrameRecorder wrote the segment files
+   * @param camera which camera's frames to play back
+   * @param realTime wait between frames as long as between their frame times
+   * @param loop start over after the last frame
+   */
+  public ReplaySource(String name, File directory, int camera, 
+    boolean realTime, boolean loop) throws IOException {
+    this.name = name;
+    this.camera = camera;
+    this.realTime = realTime;
+    this.loop = loop;
+    File[] files = directory.listFiles((dir, file) -> file.endsWith(".seg"));
+    if (files == null || files.length == 0) {
+      throw new IOException("No recorded frames in " + directory);
+    }
+    Arrays.sort(files);
+    this.segments = files;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getError() {
+    return "no more recorded frames";
+  }
+
+  public boolean reconnect() {
+    return false;
+  }
+
+  public long grabFrame(Mat image) {
+    try {
+      while (true) {
+        if (segment == null || !nextRecord(image)) {
+          if (!openNextSegment()) {
+            // Nothing left to play, behave like a camera that stopped
+            try { Thread.sleep(100); } 
+            catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            return 0;
+          }
+          continue;
+        }
+        playedThisPass = true;
+        long frameTime = recordFrameTime;
+        pace(frameTime);
+        return frameTime;
+      }
+    } catch (IOException ex) {
+      System.out.println("Error: ReplaySource " + name + ": " + ex.getMessage());
+      return 0;
+    }
+  }
+
+  /**
+   * Read the next record of our camera in the current segment into image.
+   *
+   * @return false at the end of the segment
+   */
+  private boolean nextRecord(Mat image) {
+    while (segment.remaining() >= FrameRecorder.RECORD_HEADER_SIZE) {
+      int start = segment.position();
+      if (segment.getInt() != FrameRecorder.RECORD_MAGIC) {
+        return false;
+      }
+      int recordSize = segment.getInt();
+      int recordCamera = segment.getInt();
+      if (recordCamera != camera) {
+        segment.position(start + recordSize);
+        continue;
+      }
+      int rows = segment.getInt();
+      int cols = segment.getInt();
+      int type = segment.getInt();
+      recorded.clear();
+      recorded.frameId = segment.getLong();
+      recordFrameTime = segment.getLong();
+      recorded.captureNanos = segment.getLong();
+      recorded.sonarDistance = segment.getDouble();
+      recorded.processed = segment.getInt() != 0;
+      recorded.targetCount = segment.getInt();
+      recorded.targetAcquired = segment.getInt() != 0;
+      recorded.distance = segment.getInt();
+      recorded.error = segment.getInt();
+      recorded.distanceInches = segment.getFloat();
+      recorded.yawDegrees = segment.getFloat();
+      segment.position(start + FrameRecorder.RECORD_HEADER_SIZE);
+
+      int length = recordSize - FrameRecorder.RECORD_HEADER_SIZE;
+      if (pixels.length < length) {
+        pixels = new byte[length];
+      }
+      segment.get(pixels, 0, length);
+      image.create(rows, cols, type);
+      image.put(0, 0, pixels);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean openNextSegment() throws IOException {
+    if (ended) return false;
+    segmentIndex++;
+    if (segmentIndex >= segments.length) {
+      // A pass without a frame of our camera would be followed by another
+      if (!loop || !playedThisPass) {
+        ended = true;
+        segment = null;
+        return false;
+      }
+      segmentIndex = 0;
+      firstFrameTime = 0;
+      playedThisPass = false;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(segments[segmentIndex], "r")) {
+      // The mapping stays valid after the file is closed
+      segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, 
+        file.length());
+    }
+    segment.order(ByteOrder.LITTLE_ENDIAN);
+    if (segment.getLong() != FrameRecorder.FILE_MAGIC) {
+      throw new IOException(segments[segmentIndex] + " is not a frame recording");
+    }
+    if (segment.getInt() != FrameRecorder.VERSION) {
+      throw new IOException(segments[segmentIndex] + " was recorded by another version");
+    }
+    segment.position(FrameRecorder.HEADER_SIZE);
+    return true;
+  }
+
+  /**
+   * In real time mode, wait until it is time for a frame.
+   */
+  private void pace(long frameTime) {
+    if (!realTime) return;
+    long now = System.nanoTime();
+    if (firstFrameTime == 0 || frameTime < firstFrameTime) {
+      firstFrameTime = frameTime;
+      firstFrameNanos = now;
+      return;
+    }
+    // Frame times are in microseconds
+    long due = firstFrameNanos + (frameTime - firstFrameTime) * 1000;
+    long wait = due - now;
+    if (wait > 0) {
+      try { Thread.sleep(wait / 1000000, (int) (wait % 1000000)); }
+      catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+  }
+
+  /**
+   * @return the record of the last frame. Its capture time is the
+   *   System.nanoTime of the run that recorded it.
+   */
+  public VisionResult getRecorded() {
+    return recorded;
+  }
+}
@@ -0,0 +1,89 @@
+import java.util.Random;
+
+/**
+ * A sonar that is not there, for running the sonar code on a machine without
+ * GPIO pins.
+ *
+ * <p>
+ * Each trigger reports the echo edges straight away, with the timestamps a
+ * sensor at the set distance would have given them. The distance can be
+ * blurred with noise and, now and then, replaced by a wild reading, to see
+ * what the filter of the sonar makes of it.
+ */
+public class SimulatedSonarGpio implements SonarGpio {
+  private static final double SOUND_SPEED = 34300; // cm/s
+  private static final double INCHES_TO_CM = 2.54;
+  // Between the end of the trigger and the echo going high
+  private static final long ECHO_DELAY_NANOS = 500 * 1000;
+  // How long the echo stays high when nothing is in range
+  private static final long NO_ECHO_NANOS = 38 * 1000 * 1000;
+
+  private final Random random;
+  private volatile double distance;
+  private volatile double noise;
+  private volatile double outlierRate;
+  private volatile boolean echoing = true;
+  private volatile EchoListener listener;
+
+  /**
+   * @param distance the distance to report, in inches
+   * @param noise the standard deviation of the noise, in inches
+   * @param outlierRate the fraction of readings that are anywhere in range
+   * @param seed the seed of the noise, so a run can be repeated
+   */
+  public SimulatedSonarGpio(double distance, double noise, double outlierRate, long seed) {
+    this.distance = distance;
+    this.noise = noise;
+    this.outlierRate = outlierRate;
+    this.random = new Random(seed);
+  }
+
+  public void setDistance(double distance) {
+    this.distance = distance;
+  }
+
+  public void setNoise(double noise) {
+    this.noise = noise;
+  }
+
+  public void setOutlierRate(double outlierRate) {
+    this.outlierRate = outlierRate;
+  }
+
+  /**
+   * @param echoing false to act like nothing is in front of the sensor
+   */
+  public void setEchoing(boolean echoing) {
+    this.echoing = echoing;
+  }
+
+  public void setEchoListener(EchoListener listener) {
+    this.listener = listener;
+  }
+
+  public void trigger() {
+    EchoListener current = listener;
+    if (current == null) {
+      return;
+    }
+    long pulse;
+    synchronized (random) {
+      if (!echoing) {
+        pulse = NO_ECHO_NANOS;
+      } else {
+        double inches = random.nextDouble() < outlierRate
+          ? random.nextDouble() * 160
+          : distance + random.nextGaussian() * noise;
+        double cm = Math.max(0, inches) * INCHES_TO_CM;
+        pulse = (long) (2 * cm / SOUND_SPEED * 1e9);
+      }
+    }
+    long rise = System.nanoTime() + ECHO_DELAY_NANOS;
+    current.echoEdge(true, rise);
+    current.echoEdge(false, rise + pulse);
+  }
+
+  public void close() {
+    listener = null;
+  }
+}
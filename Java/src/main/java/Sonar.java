@@ -1,99 +1,186 @@
-import com.pi4j.io.gpio.GpioController;
-import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.GpioPinDigitalMultipurpose;
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-import com.pi4j.io.gpio.PinMode;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.RaspiPin;
-
-import java.text.DecimalFormat;
-import java.text.Format;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Write a description of class Sonar here.
- * 
- * @author Bogdan V. Bradu 
- * @version 0.1
+ * Measures the distance with an HC-SR04 style sonar.
+ *
+ * <p>
+ * The run loop sends a trigger pulse at a fixed rate and sleeps in between.
+ * The echo is measured from the timestamps of its rising and falling edges,
+ * which the GPIO layer reports as they happen, so no thread spins on the pin
+ * and a descheduled thread does not stretch the pulse. Readings out of the
+ * range of the sensor are dropped, and the distance is the median of the last
+ * few readings so that a stray echo does not show.
+ *
+ * <p>
+ * Every reading is also added to a {@link SonarRing} with the time it was
+ * measured at, for code that needs the distance at the time of a frame.
+ *
+ * @author Bogdan V. Bradu
+ * @version 0.2
  */
-public class Sonar extends Thread {
-  private final static double SOUND_SPEED = 34300;  // 34300; 
+public class Sonar implements Runnable, SonarGpio.EchoListener {
+  private final static double SOUND_SPEED = 34300;  // 34300;
     // in cm, 340.29 m/s
   private final static double DIST_FACT   = SOUND_SPEED / 2; // round trip
-  private final static long BILLION      = (long)10E9;
-  private final static int TEN_MICRO_SEC = 10 * 1000; // In Nano secs
-    
-  private boolean verbose = false;
-  private GpioPinDigitalOutput trigPin;
-  private GpioPinDigitalInput echoPin;
-  private double distance;
+  private final static double CM_TO_INCHES = .393701;
+  // What the HC-SR04 can measure
+  private final static double MIN_DISTANCE_CM = 2;
+  private final static double MAX_DISTANCE_CM = 400;
+  private final static int RING_SIZE = 64;
+
+  private final SonarGpio gpio;
+  private final long periodNanos;
+  private final boolean verbose;
+  private volatile boolean running = true;
+
+  // Echo state, shared with the thread that reports the edges
+  private final MedianFilter filter;
+  private boolean waitingForEcho = false;
+  private boolean risen = false;
+  private long riseNanos = 0;
+  private long readings = 0;
+  private long rejected = 0;
+  private long missed = 0;
+  // Whether each of the last triggers gave a reading, for the quality
+  private final boolean[] outcomes;
+  private int nextOutcome = 0;
+  private int goodOutcomes = 0;
+
+  private final SonarRing samples = new SonarRing(RING_SIZE);
+
+  private volatile double distance = 0;
+  private volatile double rawDistance = 0;
 
   /**
-   * Constructor for objects of class Sonar
+   * @param gpio the pins of the sonar
+   * @param rate how many measurements to make per second. The HC-SR04 wants
+   *   at least 60 ms between them to not hear the previous echo.
+   * @param window how many readings the distance is the median of
    */
-  public Sonar() {
-    System.out.println("GPIO Control Starting");
+  public Sonar(SonarGpio gpio, double rate, int window) {
+    this.gpio = gpio;
+    this.periodNanos = (long) (1e9 / rate);
+    this.filter = new MedianFilter(window);
+    this.outcomes = new boolean[Math.max(window, 1)];
+    //TODO Need to try out this property for debugging at runtime
+    this.verbose = "true".equals(System.getProperty("verbose", "false"));
+    gpio.setEchoListener(this);
+  }
 
-    // create gpio controller
-    final GpioController gpio = GpioFactory.getInstance();
-    trigPin = gpio.provisionDigitalOutputPin(RaspiPin.GPIO_04, "Trig", PinState.LOW);
-    echoPin = gpio.provisionDigitalInputPin(RaspiPin.GPIO_05, "Echo");
+  /**
+   * @return the filtered distance, in inches
+   */
+  public double getDistance() {
+    return distance;
+  }
 
-    //TODO Need to try out this property for debugging at runtime
-    verbose = "true".equals(System.getProperty("verbose", "false"));
-    
-    distance = 0.0f;
+  /**
+   * @return the last reading that was in range, unfiltered, in inches
+   */
+  public double getRawDistance() {
+    return rawDistance;
   }
 
-  public double getMockDistance() { 
-    try { Thread.sleep(100); } 
-    catch (Exception ex) { ex.printStackTrace(); } 
+  /**
+   * @return how many readings were in range
+   */
+  public synchronized long getReadings() {
+    return readings;
+  }
 
-    return 8.0f; 
+  /**
+   * @return how many readings were out of range
+   */
+  public synchronized long getRejected() {
+    return rejected;
   }
-  
-  public double getDistance() {
-    return distance;
+
+  /**
+   * @return how many triggers got no complete echo before the next one
+   */
+  public synchronized long getMissed() {
+    return missed;
+  }
+
+  /**
+   * @return the filtered readings, with the time they were measured at and
+   *   their quality: the fraction of the last few triggers that gave a
+   *   reading in range
+   */
+  public SonarRing getSamples() {
+    return samples;
+  }
+
+  public void stop() {
+    running = false;
   }
 
   public void run() {
-    while (true) {
-      //TODO: is this needed?
-      try { Thread.sleep(10); } 
-      catch (Exception ex) { ex.printStackTrace(); } 
-
-      trigPin.low();
-    
-      if (echoPin.isHigh())
-        System.out.println(">>> !! Before sending signal, echo PIN is " 
-          + (echoPin.isHigh() ? "High" : "Low"));
-          
-      trigPin.high();
-      // 10 microsec to trigger the module  (8 ultrasound bursts at 40 kHz) 
-      // https://www.dropbox.com/s/615w1321sg9epjj/hc-sr04-ultrasound-timing-diagram.png
-      try { Thread.sleep(0, TEN_MICRO_SEC); } 
-      catch (Exception ex) { ex.printStackTrace(); } 
-      trigPin.low();
-
-      // Wait for the signal to return
-      while (echoPin.isLow()) {
-        this.yield(); //TODO: do we need to win
-      } 
-
-      long start = System.nanoTime();
-      // There it is, the echo comes back.
-      while (echoPin.isHigh());
-      long end = System.nanoTime();
-      double distanceCm = 0;
-
-      if (end > start) {
-        double pulseDuration = (double)(end - start)*10 / (double)BILLION; // in seconds
-        distanceCm = pulseDuration * DIST_FACT;
+    long next = System.nanoTime();
+    while (running) {
+      synchronized (this) {
+        if (waitingForEcho) {
+          if (verbose) {
+            System.out.println(">>> !! No echo before the next trigger");
+          }
+          missed++;
+          addOutcome(false);
+        }
+        waitingForEcho = true;
+        risen = false;
+      }
+      gpio.trigger();
+
+      next += periodNanos;
+      long now = System.nanoTime();
+      if (next - now < 0) {
+        // Fell behind, don't try to catch up
+        next = now;
+      }
+      while (running && (now = System.nanoTime()) - next < 0) {
+        LockSupport.parkNanos(next - now);
       }
-    
-      trigPin.low(); // Off
+    }
+    gpio.close();
+  }
 
-      this.distance = distanceCm * .393701;
+  public synchronized void echoEdge(boolean high, long nanoTime) {
+    if (!waitingForEcho) {
+      return;
+    }
+    if (high) {
+      risen = true;
+      riseNanos = nanoTime;
+      return;
     }
+    if (!risen) {
+      // The echo of an earlier trigger, or a glitch
+      return;
+    }
+    waitingForEcho = false;
+    double pulseDuration = (nanoTime - riseNanos) / 1e9; // in seconds
+    double distanceCm = pulseDuration * DIST_FACT;
+    if (distanceCm < MIN_DISTANCE_CM || distanceCm > MAX_DISTANCE_CM) {
+      rejected++;
+      addOutcome(false);
+      return;
+    }
+    readings++;
+    addOutcome(true);
+    rawDistance = distanceCm * CM_TO_INCHES;
+    distance = filter.add(rawDistance);
+    // The sound bounced off the target half way through the echo
+    samples.add(riseNanos + (nanoTime - riseNanos) / 2, distance,
+      goodOutcomes / (double) outcomes.length);
+    if (verbose) {
+      System.out.println("Sonar: " + rawDistance + " in, filtered " + distance + " in");
+    }
+  }
+
+  private void addOutcome(boolean good) {
+    if (outcomes[nextOutcome]) goodOutcomes--;
+    outcomes[nextOutcome] = good;
+    if (good) goodOutcomes++;
+    nextOutcome = (nextOutcome + 1) % outcomes.length;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,33 @@
+/**
+ * The two pins of an HC-SR04 style sonar: a trigger output, and an echo input
+ * that reports its edges as they happen. Lets the sonar run the same way
+ * against the GPIO of the Pi or against a simulated sensor.
+ */
+public interface SonarGpio {
+
+  /**
+   * Receives the edges of the echo pin.
+   */
+  interface EchoListener {
+    /**
+     * @param high true for the rising edge, false for the falling one
+     * @param nanoTime the System.nanoTime of the edge
+     */
+    void echoEdge(boolean high, long nanoTime);
+  }
+
+  /**
+   * Set who gets the echo edges. Must be called before the first trigger.
+   */
+  void setEchoListener(EchoListener listener);
+
+  /**
+   * Send the pulse that starts a measurement.
+   */
+  void trigger();
+
+  /**
+   * Leave the pins in a safe state and stop reporting edges.
+   */
+  void close();
+}
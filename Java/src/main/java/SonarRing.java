@@ -0,0 +1,167 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few sonar samples, each with the System.nanoTime it was measured
+ * at, so that a reading can be lined up with a frame grabbed at another time.
+ *
+ * <p>
+ * There is one writer, the sonar, and any number of readers, none of which
+ * ever take a lock. The writer fills the slot of the next sample and then
+ * publishes the new count. A reader copies the samples it wants and checks the
+ * count again afterwards; if the writer may have reused a slot in the
+ * meantime, the reader tries again.
+ */
+public class SonarRing {
+  // time, distance bits, quality bits
+  private static final int FIELDS = 3;
+
+  private final int mask;
+  private final AtomicLongArray slots;
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * @param capacity how many samples to keep, rounded up to a power of 2
+   */
+  public SonarRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    mask = size - 1;
+    slots = new AtomicLongArray(size * FIELDS);
+  }
+
+  /**
+   * Add a sample. Only the sonar calls this.
+   *
+   * @param nanoTime when the distance was measured
+   * @param distance in inches
+   * @param quality how much to trust the sample, from 0 to 1
+   */
+  public void add(long nanoTime, double distance, double quality) {
+    long n = count.get();
+    int base = (int) (n & mask) * FIELDS;
+    slots.lazySet(base, nanoTime);
+    slots.lazySet(base + 1, Double.doubleToRawLongBits(distance));
+    slots.lazySet(base + 2, Double.doubleToRawLongBits(quality));
+    count.lazySet(n + 1);
+  }
+
+  /**
+   * @return how many samples were ever added
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * The distance at a time, interpolated between the samples before and
+   * after it. Before the oldest sample kept it is the oldest, after the
+   * newest it is the newest.
+   *
+   * @param nanoTime the System.nanoTime to get the distance at
+   * @return the distance in inches, or NaN if there are no samples
+   */
+  public double distanceAt(long nanoTime) {
+    while (true) {
+      long n = count.get();
+      if (n == 0) {
+        return Double.NaN;
+      }
+      long oldest = Math.max(0, n - mask);
+      // Walk back from the newest to the first sample not after nanoTime
+      long i = n - 1;
+      long laterTime = 0;
+      double laterDistance = 0;
+      boolean hasLater = false;
+      double result = Double.NaN;
+      while (i >= oldest) {
+        int base = (int) (i & mask) * FIELDS;
+        long time = slots.get(base);
+        double distance = Double.longBitsToDouble(slots.get(base + 1));
+        if (time - nanoTime <= 0) {
+          if (!hasLater || laterTime == time) {
+            result = distance;
+          } else {
+            double fraction = (nanoTime - time) / (double) (laterTime - time);
+            result = distance + (laterDistance - distance) * fraction;
+          }
+          break;
+        }
+        laterTime = time;
+        laterDistance = distance;
+        hasLater = true;
+        i--;
+      }
+      if (i < oldest) {
+        // Older than anything kept
+        result = laterDistance;
+      }
+      if (isValid(Math.max(i, oldest))) {
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Copy the newest samples, newest first.
+   *
+   * @return how many samples were copied, at most the length of the arrays
+   */
+  public int latest(long[] times, double[] distances, double[] qualities) {
+    int wanted = Math.min(times.length, Math.min(distances.length, qualities.length));
+    while (true) {
+      long n = count.get();
+      long oldest = Math.max(0, n - mask);
+      int copied = 0;
+      for (long i = n - 1; i >= oldest && copied < wanted; i--) {
+        int base = (int) (i & mask) * FIELDS;
+        times[copied] = slots.get(base);
+        distances[copied] = Double.longBitsToDouble(slots.get(base + 1));
+        qualities[copied] = Double.longBitsToDouble(slots.get(base + 2));
+        copied++;
+      }
+      if (copied == 0 || isValid(n - copied)) {
+        return copied;
+      }
+    }
+  }
+
+  /**
+   * @return the quality of the newest sample, or 0 if there are none
+   */
+  public double latestQuality() {
+    while (true) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      double quality = Double.longBitsToDouble(slots.get((int) ((n - 1) & mask) * FIELDS + 2));
+      if (isValid(n - 1)) {
+        return quality;
+      }
+    }
+  }
+
+  /**
+   * @return the time of the newest sample, or 0 if there are none
+   */
+  public long latestNanos() {
+    while (true) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long time = slots.get((int) ((n - 1) & mask) * FIELDS);
+      if (isValid(n - 1)) {
+        return time;
+      }
+    }
+  }
+
+  /**
+   * @return true if the writer has not started to reuse the slot of sample i
+   *   since it was read. Reusing it starts once the count reaches i + size.
+   */
+  private boolean isValid(long i) {
+    return count.get() - i <= mask;
+  }
+}
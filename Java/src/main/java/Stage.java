@@ -0,0 +1,99 @@
+/**
+ * A step of the vision runtime that runs on its own thread, over and over,
+ * until it is stopped.
+ */
+public abstract class Stage implements Runnable {
+  private final String name;
+  private volatile boolean running = true;
+  private int cpu = -1;
+
+  // Written by the stage thread only, read by whoever reports on it
+  private volatile long iterations = 0;
+  private volatile long busyNanos = 0;
+  private volatile long maxNanos = 0;
+
+  protected Stage(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Do one unit of work.
+   *
+   * @return true if there was work to do, false if the stage was idle
+   */
+  protected abstract boolean step() throws Exception;
+
+  /**
+   * Called once on the stage thread after it was stopped.
+   */
+  protected void finish() {
+  }
+
+  /**
+   * Run the stage on this core only. Must be called before start.
+   */
+  public void setCpu(int cpu) {
+    this.cpu = cpu;
+  }
+
+  public void run() {
+    if (cpu >= 0 && !CpuAffinity.pinCurrentThread(cpu)) {
+      System.out.println("Warning: " + name + " is not pinned to CPU " + cpu);
+    }
+    while (running) {
+      long start = System.nanoTime();
+      try {
+        if (!step()) continue;
+      } catch (InterruptedException ex) {
+        break;
+      } catch (Exception ex) {
+        System.out.println("Error: " + name + " crashed: " + ex.getMessage());
+        ex.printStackTrace();
+        continue;
+      }
+      long elapsed = System.nanoTime() - start;
+      iterations++;
+      busyNanos += elapsed;
+      if (elapsed > maxNanos) maxNanos = elapsed;
+    }
+    finish();
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Start the stage on a thread of its own.
+   */
+  public Thread start() {
+    Thread thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public long getIterations() {
+    return iterations;
+  }
+
+  /**
+   * @return the average time one step took, in milliseconds
+   */
+  public double getAverageMs() {
+    long count = iterations;
+    return count == 0 ? 0 : busyNanos / (double) count / 1e6;
+  }
+
+  public double getMaxMs() {
+    return maxNanos / 1e6;
+  }
+}
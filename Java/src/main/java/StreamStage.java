@@ -0,0 +1,234 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.MjpegServer;
+import edu.wpi.cscore.VideoEvent;
+import edu.wpi.cscore.VideoListener;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Draws the target overlay on processed frames of the camera selected on the
+ * dashboard and restreams them, so the MJPEG encode never holds up grabbing
+ * or processing the next frame.
+ *
+ * <p>
+ * The stream has its own rate and resolution. The process stages ask
+ * {@link #claimFrame(long)} before copying a frame over, so while no client
+ * is connected to the server, or between two frames of the stream rate,
+ * nothing is copied, drawn or encoded at all.
+ */
+public class StreamStage extends Stage {
+  private static final long TAKE_TIMEOUT_MS = 250;
+  // The calibration box is given for a frame of this size
+  private static final double CALIBRATION_WIDTH = 320;
+  private static final double CALIBRATION_HEIGHT = 240;
+
+  private final FrameRing forwardRing;
+  private final FrameRing otherRing;
+  private final TelemetryStage telemetry;
+  private final CvSource imageSource;
+  private final Size size;
+  private final long periodNanos;
+  private final boolean always;
+  // Scaled copy of the frame, when the stream is not the camera resolution
+  private final Mat scaled = new Mat();
+  private final Point from = new Point();
+  private final Point to = new Point();
+  // Keeps the listener registered while the stage lives
+  private final VideoListener clientListener;
+  private CaptureStage forwardCapture;
+  private CaptureStage otherCapture;
+  private LatencyTrace trace;
+  private int forwardPath;
+  private int otherPath;
+
+  private volatile boolean hasClients = false;
+  // Claimed by both process stages at once in multiCamera mode
+  private final AtomicLong nextDue = new AtomicLong();
+  private long streamed = 0;
+
+  //Practice Bot camera needs this target tracking
+  //private final Point targetLeftTop = new Point(205, 104);
+  //private final Point targetLeftBot = new Point(205, 121);
+  //private final Point targetRightBot = new Point(286, 121);
+  //private final Point targetRightTop = new Point(286, 104);
+
+  //2017 Competition robot needs this target tracking
+  private final Point targetLeftTop = new Point(183, 79);
+  private final Point targetLeftBot = new Point(183, 62);
+  private final Point targetRightBot = new Point(248, 62);
+  private final Point targetRightTop = new Point(248, 79);
+
+  private final Scalar orange = new Scalar(0, 165, 255);
+  private final Scalar green = new Scalar(0, 255, 0);
+
+  /**
+   * @param forwardRing frames to stream when forwardCameraOn is set
+   * @param otherRing frames to stream otherwise
+   * @param server the server streaming imageSource; frames are only made
+   *   while it has clients
+   * @param width width of the streamed frames
+   * @param height height of the streamed frames
+   * @param rate the most frames to stream per second
+   * @param always stream even when the server has no clients, for servers
+   *   that do not report them
+   */
+  public StreamStage(FrameRing forwardRing, FrameRing otherRing,
+    TelemetryStage telemetry, CvSource imageSource, MjpegServer server,
+    int width, int height, double rate, boolean always) {
+    super("Stream");
+    this.forwardRing = forwardRing;
+    this.otherRing = otherRing;
+    this.telemetry = telemetry;
+    this.imageSource = imageSource;
+    this.size = new Size(width, height);
+    this.periodNanos = (long) (1e9 / rate);
+    this.always = always;
+    this.nextDue.set(System.nanoTime());
+
+    // The server enables its sink when the first client connects and
+    // disables it when the last one leaves
+    final int serverHandle = server.getHandle();
+    clientListener = new VideoListener(event -> {
+      if (event.sinkHandle != serverHandle) return;
+      hasClients = event.kind == VideoEvent.Kind.kSinkEnabled;
+      System.out.println("Stream: " + (hasClients ? "clients connected"
+        : "no clients"));
+    }, VideoEvent.Kind.kSinkEnabled.getValue()
+      | VideoEvent.Kind.kSinkDisabled.getValue(), true);
+  }
+
+  /**
+   * Ask whether to hand the stream a frame. Called by the process stages
+   * for every frame of the camera being streamed, possibly from two
+   * threads at once; only one of them gets each slot of the stream rate.
+   *
+   * @return true if the frame is wanted; it is then counted against the
+   *   stream rate, so the caller must hand it over
+   */
+  public boolean claimFrame(long nowNanos) {
+    if (!hasClients && !always) return false;
+    while (true) {
+      long due = nextDue.get();
+      // A quarter of a period early is on time, so camera frames that
+      // arrive with a little jitter around the stream period are not skipped
+      if (nowNanos - due < -periodNanos / 4) return false;
+      long next = due + periodNanos;
+      if (nowNanos - next > 0) next = nowNanos + periodNanos;
+      if (nextDue.compareAndSet(due, next)) return true;
+    }
+  }
+
+  /**
+   * Stream the other camera while the selected one is down, as the process
+   * stages do.
+   *
+   * @param forwardCapture grabs the camera of forwardRing
+   * @param otherCapture grabs the camera of otherRing
+   */
+  public void setFailover(CaptureStage forwardCapture, 
+    CaptureStage otherCapture) {
+    this.forwardCapture = forwardCapture;
+    this.otherCapture = otherCapture;
+  }
+
+  /**
+   * Record the latency of every streamed frame, from when it was captured
+   * to when it was handed to the stream.
+   *
+   * @param forwardPath the path of the frames of forwardRing
+   * @param otherPath the path of the frames of otherRing
+   */
+  public void setLatencyTrace(LatencyTrace trace, int forwardPath, 
+    int otherPath) {
+    this.trace = trace;
+    this.forwardPath = forwardPath;
+    this.otherPath = otherPath;
+  }
+
+  public boolean hasClients() {
+    return hasClients;
+  }
+
+  /**
+   * @return how many frames were streamed
+   */
+  public long getStreamed() {
+    return streamed;
+  }
+
+  protected boolean step() throws InterruptedException {
+    boolean forward = telemetry.isForwardCameraOn();
+    CaptureStage selected = forward ? forwardCapture : otherCapture;
+    if (selected != null && selected.isDown()) forward = !forward;
+    FrameRing ring = forward ? forwardRing : otherRing;
+    Frame frame = ring.take(TAKE_TIMEOUT_MS);
+    if (frame == null) return false;
+
+    try {
+      Mat image = frame.image;
+      if (image.cols() != (int) size.width || image.rows() != (int) size.height) {
+        Imgproc.resize(image, scaled, size, 0, 0, Imgproc.INTER_AREA);
+        image = scaled;
+      }
+      // The stream width and height are set on their own, so the frame may
+      // be stretched more one way than the other
+      double scaleX = image.cols() / (double) frame.image.cols();
+      double scaleY = image.rows() / (double) frame.image.rows();
+
+      if (frame.annotate) {
+        double boxX = image.cols() / CALIBRATION_WIDTH;
+        double boxY = image.rows() / CALIBRATION_HEIGHT;
+        line(image, targetLeftTop, targetLeftBot, boxX, boxY, orange);
+        line(image, targetLeftBot, targetRightBot, boxX, boxY, orange);
+        line(image, targetRightBot, targetRightTop, boxX, boxY, orange);
+      }
+      drawStrips(image, frame, scaleX, scaleY);
+
+      // Write the image that you want to restream
+      imageSource.putFrame(image);
+      streamed++;
+      if (trace != null) {
+        VisionResult result = frame.result;
+        trace.record(forward ? forwardPath : otherPath, result.captureNanos,
+          result.grabNanos, result.processedNanos, System.nanoTime());
+      }
+    } finally {
+      ring.release();
+    }
+    return true;
+  }
+
+  private void line(Mat image, Point a, Point b, double scaleX, double scaleY,
+    Scalar color) {
+    from.x = a.x * scaleX;
+    from.y = a.y * scaleY;
+    to.x = b.x * scaleX;
+    to.y = b.y * scaleY;
+    Imgproc.line(image, from, to, color, 2);
+  }
+
+  /**
+   * Outline the strips the pipeline found, corner to corner.
+   */
+  private void drawStrips(Mat image, Frame frame, double scaleX,
+    double scaleY) {
+    double[] corners = frame.stripCorners;
+    for (int strip = 0; strip < frame.strips; strip++) {
+      int base = strip * 8;
+      for (int corner = 0; corner < 4; corner++) {
+        int a = base + corner * 2;
+        int b = base + (corner + 1) % 4 * 2;
+        from.x = corners[a] * scaleX;
+        from.y = corners[a + 1] * scaleY;
+        to.x = corners[b] * scaleX;
+        to.y = corners[b + 1] * scaleY;
+        Imgproc.line(image, from, to, green, 1);
+      }
+    }
+  }
+}
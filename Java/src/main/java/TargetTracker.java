@@ -0,0 +1,148 @@
+/**
+ * Follows the target of one camera from frame to frame, so one noisy frame
+ * does not make it come and go or jump, and predicts where it is now rather
+ * than where it was when the frame was captured.
+ *
+ * <p>
+ * The offset from the middle (VisionError), the width (VisionDistance), the
+ * distance in inches and the yaw each go through an alpha-beta filter, which
+ * keeps a value and how fast it changes. Each frame's measurement is compared with
+ * the value predicted for the time the frame was captured, and corrects
+ * both. Capture times come from FrameClock, so the prediction also makes up
+ * for the time between the camera glass and the grab.
+ * A jump too big to be the same target starts over from the new one.
+ *
+ * <p>
+ * A confidence between 0 and 1 goes up with each frame that has the target
+ * and down with each that does not. The target is only acquired once the
+ * confidence is above ACQUIRE, and only lost once it is below RELEASE, so
+ * two frames in a row are needed either way. If no frame with the target
+ * comes for MAX_GAP_NANOS, for example because the camera is down or not
+ * processed any more, the target is lost too, so a stale prediction is not
+ * sent forever.
+ */
+public class TargetTracker {
+  // How much of the difference between measurement and prediction goes into
+  // the value, and into its rate of change
+  private static final double ALPHA = 0.5;
+  private static final double BETA = 0.2;
+  // An error further than this from the prediction, in reference pixels,
+  // is taken for another target
+  private static final double GATE = 40;
+  private static final double ACQUIRE = 0.7;
+  private static final double RELEASE = 0.3;
+  // Do not extrapolate further than this past the last frame with the
+  // target, in nanoseconds
+  private static final long MAX_PREDICTION_NANOS = 200000000L;
+  // After this long without the target, let it go and start over with the
+  // next one
+  private static final long MAX_GAP_NANOS = 500000000L;
+
+  /**
+   * A value and its rate of change per second.
+   */
+  private static class Filter {
+    double value;
+    double rate;
+
+    void reset(double measured) {
+      value = measured;
+      rate = 0;
+    }
+
+    void update(double measured, double seconds) {
+      double predicted = value + rate * seconds;
+      double residual = measured - predicted;
+      value = predicted + ALPHA * residual;
+      rate += BETA * residual / seconds;
+    }
+
+    double predict(double seconds) {
+      return value + rate * seconds;
+    }
+  }
+
+  private final Filter center = new Filter();
+  private final Filter width = new Filter();
+  private final Filter distanceInches = new Filter();
+  private final Filter yawDegrees = new Filter();
+  private boolean hasState = false;
+  // When the frame the filters were last updated with was captured
+  private long stateNanos;
+  private double confidence = 0;
+  private boolean acquired = false;
+  // The last frame, for what is not filtered
+  private final VisionResult last = new VisionResult();
+
+  /**
+   * Add the results of a frame. Frames must come in the order they were
+   * captured.
+   */
+  public void update(VisionResult result) {
+    if (!result.processed) return;
+    last.copyFrom(result);
+    if (!result.targetAcquired) {
+      confidence *= 1 - ALPHA;
+      if (acquired && confidence < RELEASE) {
+        acquired = false;
+        hasState = false;
+      }
+      return;
+    }
+
+    confidence += (1 - confidence) * ALPHA;
+    double seconds = (result.captureNanos - stateNanos) / 1e9;
+    if (!hasState || seconds <= 0 || seconds > MAX_GAP_NANOS / 1e9
+      || Math.abs(result.error - center.predict(seconds)) > GATE) {
+      center.reset(result.error);
+      width.reset(result.distance);
+      distanceInches.reset(result.distanceInches);
+      yawDegrees.reset(result.yawDegrees);
+      hasState = true;
+    } else {
+      center.update(result.error, seconds);
+      width.update(result.distance, seconds);
+      distanceInches.update(result.distanceInches, seconds);
+      yawDegrees.update(result.yawDegrees, seconds);
+    }
+    stateNanos = result.captureNanos;
+    if (confidence >= ACQUIRE) acquired = true;
+  }
+
+  /**
+   * Give the target as it should be at a time. Lets the target go if no
+   * frame has had it for too long before then.
+   *
+   * @param nowNanos System.nanoTime to predict for, not before the last
+   *   frame was captured
+   * @param out gets the last frame's results, with the target's values
+   *   predicted for nowNanos while it is acquired
+   */
+  public void predict(long nowNanos, VisionResult out) {
+    if (hasState && nowNanos - stateNanos > MAX_GAP_NANOS) {
+      confidence *= 1 - ALPHA;
+      acquired = false;
+      hasState = false;
+    }
+    out.copyFrom(last);
+    out.targetAcquired = acquired;
+    if (!acquired) return;
+    double seconds = Math.min(nowNanos - stateNanos, MAX_PREDICTION_NANOS)
+      / 1e9;
+    out.error = (int) Math.round(center.predict(seconds));
+    out.distance = (int) Math.round(width.predict(seconds));
+    out.distanceInches = distanceInches.predict(seconds);
+    out.yawDegrees = yawDegrees.predict(seconds);
+  }
+
+  public boolean isAcquired() {
+    return acquired;
+  }
+
+  /**
+   * @return how sure the tracker is there is a target, from 0 to 1
+   */
+  public double getConfidence() {
+    return confidence;
+  }
+}
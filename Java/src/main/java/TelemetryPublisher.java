@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.tables.ITable;
+
+/**
+ * Buffers values for a NetworkTables table and writes them in batches: only
+ * the values that changed since they were last written, and no more often
+ * than a set rate.
+ *
+ * <p>
+ * Keys are registered once up front and then set by handle, so setting a
+ * value neither builds a key string nor touches NetworkTables. Values that
+ * belong together can be registered as one record, a number array whose
+ * first element is a tag such as the frame id. A record is written as a
+ * single entry, so a reader never sees half of one frame and half of
+ * another.
+ *
+ * <p>
+ * Works with any ITable, so it can be tried against a NetworkTables server
+ * running on the same machine. Not thread safe: one thread sets and flushes.
+ */
+public class TelemetryPublisher {
+
+  private static class Entry {
+    final String key;
+    final boolean isBoolean;
+    // null for a plain value
+    final double[] record;
+    final double[] publishedRecord;
+    double value;
+    double published;
+    boolean everPublished = false;
+    boolean dirty = false;
+
+    Entry(String key, boolean isBoolean, int recordLength) {
+      this.key = key;
+      this.isBoolean = isBoolean;
+      this.record = recordLength > 0 ? new double[recordLength] : null;
+      this.publishedRecord = recordLength > 0 ? new double[recordLength] : null;
+    }
+  }
+
+  private final ITable table;
+  private final long periodNanos;
+  private final boolean flushNetwork;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private long lastFlush;
+  private boolean anyDirty = false;
+  private long puts = 0;
+  private long skipped = 0;
+
+  /**
+   * @param table where to write the values
+   * @param rate the most batches to write per second
+   * @param flushNetwork send each batch right away with NetworkTable.flush
+   *   rather than waiting for the next NetworkTables update
+   */
+  public TelemetryPublisher(ITable table, double rate, boolean flushNetwork) {
+    this.table = table;
+    this.periodNanos = (long) (1e9 / rate);
+    this.flushNetwork = flushNetwork;
+    this.lastFlush = System.nanoTime() - periodNanos;
+  }
+
+  /**
+   * @return the handle to set the number with
+   */
+  public int addNumber(String key) {
+    entries.add(new Entry(key, false, 0));
+    return entries.size() - 1;
+  }
+
+  /**
+   * @return the handle to set the boolean with
+   */
+  public int addBoolean(String key) {
+    entries.add(new Entry(key, true, 0));
+    return entries.size() - 1;
+  }
+
+  /**
+   * @param length how many numbers the record has, tag included
+   * @return the handle to get the record to fill with
+   */
+  public int addRecord(String key, int length) {
+    entries.add(new Entry(key, false, length));
+    return entries.size() - 1;
+  }
+
+  public void setNumber(int handle, double value) {
+    Entry entry = entries.get(handle);
+    entry.value = value;
+    markIfChanged(entry, !entry.everPublished
+      || Double.doubleToLongBits(value) != Double.doubleToLongBits(entry.published));
+  }
+
+  public void setBoolean(int handle, boolean value) {
+    setNumber(handle, value ? 1 : 0);
+  }
+
+  /**
+   * @return the numbers of a record to fill in, followed by a call to
+   *   {@link #commitRecord(int, boolean)}
+   */
+  public double[] getRecord(int handle) {
+    return entries.get(handle).record;
+  }
+
+  /**
+   * Queue the record for writing. It is written if anything but its tag
+   * changed, or if the tag did and force is true.
+   *
+   * @param force write it even if only the tag changed, to show the values
+   *   are still current
+   */
+  public void commitRecord(int handle, boolean force) {
+    Entry entry = entries.get(handle);
+    double[] record = entry.record;
+    boolean changed = !entry.everPublished;
+    for (int i = force ? 0 : 1; i < record.length && !changed; i++) {
+      changed = Double.doubleToLongBits(record[i])
+        != Double.doubleToLongBits(entry.publishedRecord[i]);
+    }
+    markIfChanged(entry, changed);
+  }
+
+  private void markIfChanged(Entry entry, boolean changed) {
+    if (changed) {
+      entry.dirty = true;
+      anyDirty = true;
+    } else if (!entry.dirty) {
+      skipped++;
+    }
+  }
+
+  /**
+   * Write what changed, unless the last batch was less than a period ago.
+   * Values set in the meantime stay queued for the next batch.
+   *
+   * @return true if a batch was written
+   */
+  public boolean flush(long nowNanos) {
+    if (!anyDirty || nowNanos - lastFlush < periodNanos) {
+      return false;
+    }
+    lastFlush = nowNanos;
+    anyDirty = false;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (!entry.dirty) continue;
+      entry.dirty = false;
+      entry.everPublished = true;
+      if (entry.record != null) {
+        table.putNumberArray(entry.key, entry.record);
+        System.arraycopy(entry.record, 0, entry.publishedRecord, 0, entry.record.length);
+      } else if (entry.isBoolean) {
+        table.putBoolean(entry.key, entry.value != 0);
+        entry.published = entry.value;
+      } else {
+        table.putNumber(entry.key, entry.value);
+        entry.published = entry.value;
+      }
+      puts++;
+    }
+    if (flushNetwork) {
+      NetworkTable.flush();
+    }
+    return true;
+  }
+
+  /**
+   * @return how many values were written
+   */
+  public long getPuts() {
+    return puts;
+  }
+
+  /**
+   * @return how many values were set to what was already written
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+}
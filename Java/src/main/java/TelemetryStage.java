@@ -0,0 +1,409 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import org.team1635.vision.PipelineStats;
+
+/**
+ * Publishes vision results and the sonar distance to NetworkTables, reads the
+ * dashboard switches back, and periodically reports how the other stages are
+ * doing.
+ *
+ * <p>
+ * The results go through a TelemetryPublisher, so only values that changed
+ * are sent, in batches no more often than the telemetry rate. Each camera's
+ * results are also sent as one VisionRecord entry tagged with the frame id:
+ * frame id, target count, target acquired (1 or 0), distance, error,
+ * sonar distance, distance in inches, yaw in degrees and latency: how many
+ * milliseconds before it was sent the frame was captured.
+ *
+ * <p>
+ * With a TargetTracker, each camera's results are filtered frame by frame,
+ * and the target predicted for the time of sending is sent every period,
+ * the rate of the robot's control loop, whether a new frame came or not.
+ */
+public class TelemetryStage extends Stage {
+  // The robot's control loop runs every 20 ms
+  private static final long PERIOD_MS = 20;
+  private static final long REPORT_PERIOD_MS = 5000;
+  private static final long STATS_PERIOD_MS = 1000;
+
+  private static final int RECORD_LENGTH = 9;
+
+  private final NetworkTable nt;
+  private final Sonar sonar;
+  private final TelemetryPublisher publisher;
+  private final int sonarDistanceKey;
+
+  private final List<Channel> channels = new ArrayList<Channel>();
+
+  private volatile boolean forwardCameraOn = true;
+  private volatile boolean processImage = true;
+
+  private final List<FrameRing> rings = new ArrayList<FrameRing>();
+  private final List<Stage> stages = new ArrayList<Stage>();
+  private final List<CaptureStage> captures = new ArrayList<CaptureStage>();
+  private final List<ProcessStage> processes = new ArrayList<ProcessStage>();
+  private long lastReport = System.currentTimeMillis();
+  private final List<String> statsNames = new ArrayList<String>();
+  private final List<PipelineStats> stats = new ArrayList<PipelineStats>();
+  // Each of stats over the report period, added up from the windows of
+  // publishStats, which resets stats every second
+  private final List<PipelineStats> reportStats = 
+    new ArrayList<PipelineStats>();
+  private long lastStats = System.currentTimeMillis();
+  private LatencyTrace trace;
+  private long lastTraceWindow = System.currentTimeMillis();
+
+  /**
+   * Where the results of one camera are published.
+   */
+  private static class Channel {
+    final String prefix;
+    final boolean legacyKeys;
+    // Handed over from the process stage under the stage's lock
+    final VisionResult pending = new VisionResult();
+    boolean hasPending = false;
+    final VisionResult current = new VisionResult();
+    boolean fresh = false;
+    // Whether current is from a new frame, not only predicted further
+    boolean newFrame = false;
+    // Fed every frame under the stage's lock, null if not tracking
+    TargetTracker tracker;
+    double confidence;
+    // Path in the latency trace, -1 if not traced
+    int tracePath = -1;
+    // Publisher handles of the prefixed keys, then of the legacy ones
+    final List<ResultKeys> keys = new ArrayList<ResultKeys>();
+
+    Channel(String prefix, boolean legacyKeys) {
+      this.prefix = prefix;
+      this.legacyKeys = legacyKeys;
+    }
+  }
+
+  /**
+   * The publisher handles of one set of result keys.
+   */
+  private static class ResultKeys {
+    final int record;
+    final int targetCount;
+    final int targetAcquired;
+    final int distance;
+    final int error;
+    final int sonarDistance;
+    final int distanceInches;
+    final int yaw;
+    final int confidence;
+    final int frameId;
+    final int latency;
+
+    ResultKeys(TelemetryPublisher publisher, String prefix) {
+      record = publisher.addRecord(prefix + "VisionRecord", RECORD_LENGTH);
+      targetCount = publisher.addNumber(prefix + "VisionTargetCount");
+      targetAcquired = publisher.addBoolean(prefix + "VisionTargetAcquired");
+      distance = publisher.addNumber(prefix + "VisionDistance");
+      error = publisher.addNumber(prefix + "VisionError");
+      sonarDistance = publisher.addNumber(prefix + "VisionSonarDistance");
+      distanceInches = publisher.addNumber(prefix + "VisionDistanceInches");
+      yaw = publisher.addNumber(prefix + "VisionYaw");
+      confidence = publisher.addNumber(prefix + "VisionConfidence");
+      frameId = publisher.addNumber(prefix + "VisionFrameId");
+      latency = publisher.addNumber(prefix + "VisionLatencyMs");
+    }
+  }
+
+  /**
+   * @param rate the most batches of results to send per second
+   * @param flush send each batch right away instead of with the next
+   *   NetworkTables update
+   */
+  public TelemetryStage(NetworkTable nt, Sonar sonar, double rate, 
+    boolean flush) {
+    super("Telemetry");
+    this.nt = nt;
+    this.sonar = sonar;
+    this.publisher = new TelemetryPublisher(nt, rate, flush);
+    this.sonarDistanceKey = publisher.addNumber("Sonar Distance");
+
+    // The dashboard switches are pushed to us when they change
+    nt.addTableListener("forwardCameraOn", (source, key, value, isNew) -> {
+      if (value instanceof Boolean) forwardCameraOn = (Boolean) value;
+    }, true);
+    nt.addTableListener("processImage", (source, key, value, isNew) -> {
+      if (value instanceof Boolean) processImage = (Boolean) value;
+    }, true);
+  }
+
+  /**
+   * Add a camera whose results get published. Must be called before the
+   * stage is started.
+   *
+   * @param prefix the keys are published as prefix + "/VisionError" and so 
+   *   on, or null to not publish prefixed keys
+   * @param legacyKeys also publish the keys without prefix, which is what the
+   *   robot code reads
+   * @return the channel to pass to publish
+   */
+  public int addChannel(String prefix, boolean legacyKeys) {
+    Channel ch = new Channel(prefix, legacyKeys);
+    if (prefix != null) {
+      ch.keys.add(new ResultKeys(publisher, prefix + "/"));
+    }
+    if (legacyKeys) {
+      ch.keys.add(new ResultKeys(publisher, ""));
+    }
+    channels.add(ch);
+    return channels.size() - 1;
+  }
+
+  /**
+   * Send a tracked and predicted target instead of each frame's results as
+   * they come. Must be called after the channels are added and before the
+   * stage is started.
+   */
+  public void setTargetTracker(boolean enabled) {
+    for (Channel ch : channels) {
+      ch.tracker = enabled ? new TargetTracker() : null;
+    }
+  }
+
+  /**
+   * Record in a latency trace how long the frames of a channel take from
+   * the camera to NetworkTables. The trace gets a record per path about
+   * once a second. Must be called before the stage is started.
+   *
+   * @param path the channel's path in the trace
+   */
+  public void setLatencyTrace(int channel, LatencyTrace trace, int path) {
+    this.trace = trace;
+    channels.get(channel).tracePath = path;
+  }
+
+  /**
+   * Report the queue depth and drops of this ring.
+   */
+  public void monitor(FrameRing ring) {
+    rings.add(ring);
+  }
+
+  /**
+   * Report the timing of this stage.
+   */
+  public void monitor(Stage stage) {
+    stages.add(stage);
+    if (stage instanceof CaptureStage) {
+      captures.add((CaptureStage) stage);
+    }
+    if (stage instanceof ProcessStage) {
+      processes.add((ProcessStage) stage);
+    }
+  }
+
+  /**
+   * Publish the step latencies and contour counts of a pipeline under
+   * "Stats/" + name about once a second, then start over.
+   */
+  public void monitor(String name, PipelineStats pipelineStats) {
+    statsNames.add(name);
+    stats.add(pipelineStats);
+    reportStats.add(new PipelineStats());
+  }
+
+  public boolean isForwardCameraOn() {
+    return forwardCameraOn;
+  }
+
+  public boolean isProcessImage() {
+    return processImage;
+  }
+
+  /**
+   * Queue the results of a frame to be published. Only the newest results
+   * are kept if the stage falls behind.
+   */
+  public synchronized void publish(int channel, VisionResult result) {
+    Channel ch = channels.get(channel);
+    ch.pending.copyFrom(result);
+    ch.hasPending = true;
+    if (ch.tracker != null) ch.tracker.update(result);
+    notifyAll();
+  }
+
+  private boolean anyPending() {
+    for (int i = 0; i < channels.size(); i++) {
+      if (channels.get(i).hasPending) return true;
+    }
+    return false;
+  }
+
+  protected boolean step() throws InterruptedException {
+    boolean hasResult = false;
+    synchronized (this) {
+      if (!anyPending()) {
+        wait(PERIOD_MS);
+      }
+      long now = System.nanoTime();
+      for (int i = 0; i < channels.size(); i++) {
+        Channel ch = channels.get(i);
+        ch.newFrame = ch.hasPending;
+        ch.fresh = ch.hasPending;
+        if (ch.tracker != null) {
+          // Keep predicting while the target is held, between frames too.
+          // When the tracker lets it go for lack of frames, this sends it
+          // once more as not acquired.
+          if (ch.fresh || ch.tracker.isAcquired()) {
+            ch.tracker.predict(now, ch.current);
+            ch.fresh = true;
+          }
+          ch.confidence = ch.tracker.getConfidence();
+        } else if (ch.hasPending) {
+          ch.current.copyFrom(ch.pending);
+        }
+        if (ch.hasPending) {
+          ch.hasPending = false;
+          hasResult = true;
+        }
+      }
+    }
+
+    for (int i = 0; i < channels.size(); i++) {
+      Channel ch = channels.get(i);
+      if (!ch.fresh) continue;
+      for (int k = 0; k < ch.keys.size(); k++) {
+        ResultKeys keys = ch.keys.get(k);
+        setResult(keys, ch.current, ch.newFrame);
+        if (ch.tracker != null) {
+          publisher.setNumber(keys.confidence, ch.confidence);
+        }
+      }
+    }
+
+    publisher.setNumber(sonarDistanceKey, sonar.getDistance());
+    publisher.flush(System.nanoTime());
+    if (trace != null) traceSent(System.nanoTime());
+
+    long now = System.currentTimeMillis();
+    // Publish first, so the report includes the window that just ended
+    if (!stats.isEmpty() && now - lastStats >= STATS_PERIOD_MS) {
+      lastStats = now;
+      publishStats();
+    }
+    if (now - lastReport >= REPORT_PERIOD_MS) {
+      lastReport = now;
+      report();
+    }
+    if (trace != null && now - lastTraceWindow >= STATS_PERIOD_MS) {
+      lastTraceWindow = now;
+      trace.endWindow(System.nanoTime());
+    }
+    return hasResult;
+  }
+
+  /**
+   * Record the frames just handed to NetworkTables in the latency trace.
+   */
+  private void traceSent(long sentNanos) {
+    for (int i = 0; i < channels.size(); i++) {
+      Channel ch = channels.get(i);
+      if (!ch.newFrame || ch.tracePath < 0) continue;
+      VisionResult result = ch.current;
+      trace.record(ch.tracePath, result.captureNanos, result.grabNanos,
+        result.processedNanos, sentNanos);
+    }
+  }
+
+  private void setResult(ResultKeys keys, VisionResult result, 
+    boolean newFrame) {
+    double latencyMs = (System.nanoTime() - result.captureNanos) / 1e6;
+    double[] record = publisher.getRecord(keys.record);
+    record[0] = result.frameId;
+    record[1] = result.targetCount;
+    record[2] = result.targetAcquired ? 1 : 0;
+    record[3] = result.distance;
+    record[4] = result.error;
+    record[5] = result.sonarDistance;
+    record[6] = result.distanceInches;
+    record[7] = result.yawDegrees;
+    record[8] = latencyMs;
+    // A new frame, even with the same results, shows the target is current
+    publisher.commitRecord(keys.record, newFrame);
+    publisher.setNumber(keys.targetCount, result.targetCount);
+    publisher.setBoolean(keys.targetAcquired, result.targetAcquired);
+    publisher.setNumber(keys.distance, result.distance);
+    publisher.setNumber(keys.error, result.error);
+    publisher.setNumber(keys.sonarDistance, result.sonarDistance);
+    publisher.setNumber(keys.distanceInches, result.distanceInches);
+    publisher.setNumber(keys.yaw, result.yawDegrees);
+    publisher.setNumber(keys.frameId, result.frameId);
+    publisher.setNumber(keys.latency, latencyMs);
+  }
+
+  private void report() {
+    for (FrameRing ring : rings) {
+      int depth = ring.depth();
+      long dropped = ring.getDropped();
+      System.out.println("Runtime: " + ring.getName() + " published " 
+        + ring.getPublished() + " dropped " + dropped + " depth " + depth);
+      nt.putNumber("Runtime/" + ring.getName() + "/Depth", depth);
+      nt.putNumber("Runtime/" + ring.getName() + "/Dropped", dropped);
+    }
+    for (Stage stage : stages) {
+      System.out.println("Runtime: " + stage.getName() + " ran " 
+        + stage.getIterations() + " times, avg " + stage.getAverageMs() 
+        + " ms, max " + stage.getMaxMs() + " ms");
+      nt.putNumber("Runtime/" + stage.getName() + "/AvgMs", stage.getAverageMs());
+    }
+    for (CaptureStage capture : captures) {
+      double[] grabMs = capture.takeGrabLatencyMs();
+      String prefix = "Runtime/" + capture.getName() + "/";
+      System.out.println("Runtime: " + capture.getName()
+        + (capture.isDown() ? " DOWN" : "") + " grab p50 " + grabMs[0]
+        + " ms, p99 " + grabMs[1] + " ms, max " + grabMs[2] + " ms, "
+        + capture.getTimeouts() + " timeouts, " + capture.getErrors()
+        + " errors, " + capture.getReconnects() + " reconnects");
+      nt.putBoolean(prefix + "Down", capture.isDown());
+      nt.putNumber(prefix + "GrabP50Ms", grabMs[0]);
+      nt.putNumber(prefix + "GrabP99Ms", grabMs[1]);
+      nt.putNumber(prefix + "GrabMaxMs", grabMs[2]);
+      nt.putNumber(prefix + "Timeouts", capture.getTimeouts());
+      nt.putNumber(prefix + "Errors", capture.getErrors());
+      nt.putNumber(prefix + "Reconnects", capture.getReconnects());
+    }
+    for (ProcessStage process : processes) {
+      if (process.getReplayChecked() == 0) continue;
+      System.out.println("Runtime: " + process.getName() + " replayed "
+        + process.getReplayChecked() + " processed frames, "
+        + process.getReplayMismatches() + " differ from the recording");
+      nt.putNumber("Runtime/" + process.getName() + "/ReplayMismatches",
+        process.getReplayMismatches());
+    }
+    System.out.println("Runtime: telemetry put " + publisher.getPuts()
+      + " values, skipped " + publisher.getSkipped() + " unchanged");
+    for (int i = 0; i < reportStats.size(); i++) {
+      System.out.println("Stats: " + statsNames.get(i) + " "
+        + reportStats.get(i));
+      reportStats.get(i).reset();
+    }
+  }
+
+  private void publishStats() {
+    for (int i = 0; i < stats.size(); i++) {
+      PipelineStats pipelineStats = stats.get(i);
+      String prefix = "Stats/" + statsNames.get(i) + "/";
+      synchronized (pipelineStats) {
+        nt.putNumber(prefix + "Frames", pipelineStats.getFrames());
+        for (PipelineStats.Step step : PipelineStats.Step.values()) {
+          nt.putNumber(prefix + step + "/P50Ms", pipelineStats.getP50Ms(step));
+          nt.putNumber(prefix + step + "/P99Ms", pipelineStats.getP99Ms(step));
+          nt.putNumber(prefix + step + "/MaxMs", pipelineStats.getMaxMs(step));
+        }
+        for (PipelineStats.Count count : PipelineStats.Count.values()) {
+          nt.putNumber(prefix + count + "/Avg", pipelineStats.getAverageCount(count));
+        }
+        reportStats.get(i).add(pipelineStats);
+        pipelineStats.reset();
+      }
+    }
+  }
+}
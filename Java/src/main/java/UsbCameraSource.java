@@ -0,0 +1,97 @@
+import edu.wpi.cscore.CvSink;
+import edu.wpi.cscore.MjpegServer;
+import edu.wpi.cscore.UsbCamera;
+import edu.wpi.cscore.VideoMode;
+import org.opencv.core.Mat;
+
+/**
+ * Grabs frames from a USB camera through a CvSink, and can reopen the camera
+ * when it stops delivering them.
+ *
+ * <p>
+ * The camera is also streamed raw by a server. Reconnecting frees the old
+ * camera, opens the device again in the video mode it was last set to, and
+ * points the sink and the server at the new one.
+ */
+public class UsbCameraSource implements FrameSource {
+  private final String name;
+  private final int device;
+  private final MjpegServer server;
+  private final CvSink sink;
+  private final CvSinkSource frames;
+  private UsbCamera camera;
+  private int width;
+  private int height;
+  private int fps;
+
+  /**
+   * @param device the number of the /dev/video device
+   * @param server streams the raw camera
+   * @param timeout how many seconds to wait for a frame
+   */
+  public UsbCameraSource(String name, int device, MjpegServer server,
+    int width, int height, int fps, double timeout) {
+    this.name = name;
+    this.device = device;
+    this.server = server;
+    this.width = width;
+    this.height = height;
+    this.fps = fps;
+    this.sink = new CvSink(name + " Image Grabber");
+    this.frames = new CvSinkSource(name, sink, timeout);
+    open();
+  }
+
+  private void open() {
+    // This gets the image from a USB camera
+    camera = new UsbCamera(name, device);
+    camera.setVideoMode(VideoMode.PixelFormat.kMJPEG, width, height, fps);
+    server.setSource(camera);
+    sink.setSource(camera);
+  }
+
+  public long grabFrame(Mat image) {
+    return frames.grabFrame(image);
+  }
+
+  public String getError() {
+    return frames.getError();
+  }
+
+  public VisionResult getRecorded() {
+    return null;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized boolean reconnect() {
+    System.out.println("Camera " + name + ": reconnecting /dev/video"
+      + device);
+    camera.free();
+    open();
+    return true;
+  }
+
+  /**
+   * Switch the camera to another video mode, which it keeps when it is
+   * reconnected.
+   *
+   * @return false if the camera refused the mode
+   */
+  public synchronized boolean setVideoMode(int width, int height, int fps) {
+    if (!camera.setVideoMode(VideoMode.PixelFormat.kMJPEG, width, height,
+      fps)) {
+      return false;
+    }
+    this.width = width;
+    this.height = height;
+    this.fps = fps;
+    return true;
+  }
+
+  public synchronized boolean isConnected() {
+    return camera.isConnected();
+  }
+}
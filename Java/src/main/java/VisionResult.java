@@ -0,0 +1,65 @@
+import org.team1635.vision.VisionPipeline;
+
+/**
+ * The outputs of the vision pipeline for one frame, copied out of the
+ * pipeline so they can be handed to other stages.
+ */
+public class VisionResult {
+  // The id of the frame the results are for
+  long frameId;
+  // System.nanoTime when the frame was captured, grabbed and done with by
+  // the process stage
+  long captureNanos;
+  long grabNanos;
+  long processedNanos;
+  boolean processed;
+  int targetCount;
+  boolean targetAcquired;
+  int distance;
+  int error;
+  // From the camera model
+  double distanceInches;
+  double yawDegrees;
+  // The sonar distance at the time the frame was grabbed
+  double sonarDistance;
+
+  public void clear() {
+    frameId = 0;
+    captureNanos = 0;
+    grabNanos = 0;
+    processedNanos = 0;
+    processed = false;
+    targetCount = 0;
+    targetAcquired = false;
+    distance = 0;
+    error = 0;
+    distanceInches = 0;
+    yawDegrees = 0;
+    sonarDistance = 0;
+  }
+
+  public void copyFrom(VisionPipeline pipeline) {
+    processed = true;
+    targetCount = pipeline.getTargetCandidateCount();
+    targetAcquired = pipeline.getTargetAcquired();
+    distance = pipeline.getDistance();
+    error = pipeline.getError();
+    distanceInches = pipeline.getDistanceInches();
+    yawDegrees = pipeline.getYawDegrees();
+  }
+
+  public void copyFrom(VisionResult other) {
+    frameId = other.frameId;
+    captureNanos = other.captureNanos;
+    grabNanos = other.grabNanos;
+    processedNanos = other.processedNanos;
+    processed = other.processed;
+    targetCount = other.targetCount;
+    targetAcquired = other.targetAcquired;
+    distance = other.distance;
+    error = other.error;
+    distanceInches = other.distanceInches;
+    yawDegrees = other.yawDegrees;
+    sonarDistance = other.sonarDistance;
+  }
+}
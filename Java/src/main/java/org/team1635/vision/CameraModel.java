@@ -0,0 +1,341 @@
+package org.team1635.vision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * How a camera sees the field: its pinhole intrinsics and how it is mounted
+ * on the robot, plus the height of the target it looks for.
+ *
+ * <p>
+ * From those, {@link #tablesFor(int, int)} precomputes the bearing of every
+ * column and the ground distance of every row of a frame size, so that
+ * turning a corner into inches and degrees each frame is a couple of array
+ * lookups. If the lens distorts, the tables also hold a sparse grid of where
+ * each distorted pixel really belongs, so the few corners the pipeline finds
+ * can be corrected without undistorting the whole frame.
+ *
+ * <p>
+ * A model never changes once made, so one can be shared between threads;
+ * each pipeline keeps the tables of its own frame size.
+ *
+ * <p>
+ * A model is loaded from a properties file with these keys, all optional:
+ * <ul>
+ * <li>width, height: the frame size the intrinsics were calibrated at
+ * <li>fx, fy, cx, cy: focal lengths and principal point, in pixels
+ * <li>k1, k2, p1, p2, k3: lens distortion coefficients, as OpenCV's
+ * calibrateCamera gives them
+ * <li>cameraHeight: height of the lens above the floor, in inches
+ * <li>cameraPitch: degrees the camera is tilted up from level
+ * <li>cameraYaw: degrees the camera is turned left of the robot's front
+ * <li>targetHeight: height of the bottom of the strips above the floor, in
+ * inches
+ * </ul>
+ */
+public final class CameraModel {
+	private static final int UNDISTORT_ITERATIONS = 20;
+
+	/**
+	 * A guess for a Microsoft LifeCam HD-3000 at 320x240, about 61 degrees
+	 * across, mounted level 20 inches up, looking for the peg target. Good
+	 * enough to see that the numbers move the right way; calibrate for real
+	 * distances.
+	 */
+	public static final CameraModel DEFAULT = new CameraModel(new Properties());
+
+	private final double calibrationWidth;
+	private final double calibrationHeight;
+	private final double fx;
+	private final double fy;
+	private final double cx;
+	private final double cy;
+	private final double k1;
+	private final double k2;
+	private final double p1;
+	private final double p2;
+	private final double k3;
+	private final double cameraHeight;
+	private final double pitch;
+	private final double yaw;
+	private final double targetHeight;
+
+	/**
+	 * Lookups for one frame size. Made by {@link CameraModel#tablesFor(int, int)}.
+	 */
+	public static final class Tables {
+		// About this many grid nodes across, however wide the frame is. The
+		// grid then corrects to a fraction of a pixel even for a wide angle
+		// lens, and takes a few thousand undistortPoint calls to build.
+		static final int GRID_COLUMNS = 40;
+
+		private final int width;
+		private final int height;
+		// Radians right of the robot's front, per column
+		private final double[] bearing;
+		// Inches along the floor to a point at the target height, per row.
+		// NaN for rows that can not see the target height.
+		private final double[] distance;
+		// Undistorted x and y of each grid node, row by row, or null if the
+		// lens does not distort
+		private final double[] grid;
+		private final int gridStep;
+		private final int gridColumns;
+		private final int gridRows;
+
+		private Tables(int width, int height, double[] bearing, double[] distance, double[] grid, int gridStep,
+				int gridColumns) {
+			this.width = width;
+			this.height = height;
+			this.bearing = bearing;
+			this.distance = distance;
+			this.grid = grid;
+			this.gridStep = gridStep;
+			this.gridColumns = gridColumns;
+			this.gridRows = grid == null ? 0 : grid.length / 2 / gridColumns;
+		}
+
+		/**
+		 * Moves a point of the frame to where it would be without lens
+		 * distortion, interpolating between the four grid nodes around it.
+		 *
+		 * @param xy
+		 *            x and y of the point, replaced by the corrected ones
+		 * @param offset
+		 *            index of x in xy
+		 */
+		public void undistort(double[] xy, int offset) {
+			if (grid == null) {
+				return;
+			}
+			double x = Math.min(Math.max(xy[offset], 0), width - 1);
+			double y = Math.min(Math.max(xy[offset + 1], 0), height - 1);
+			int column = Math.min((int) (x / gridStep), gridColumns - 2);
+			int row = Math.min((int) (y / gridStep), gridRows - 2);
+			double fx = x / gridStep - column;
+			double fy = y / gridStep - row;
+			int topLeft = (row * gridColumns + column) * 2;
+			int bottomLeft = topLeft + gridColumns * 2;
+			for (int i = 0; i < 2; i++) {
+				double top = grid[topLeft + i] + (grid[topLeft + 2 + i] - grid[topLeft + i]) * fx;
+				double bottom = grid[bottomLeft + i] + (grid[bottomLeft + 2 + i] - grid[bottomLeft + i]) * fx;
+				xy[offset + i] = top + (bottom - top) * fy;
+			}
+		}
+
+		public boolean undistorts() {
+			return grid != null;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * @return the bearing of column x, in radians right of the robot's
+		 *         front, interpolated between columns
+		 */
+		public double bearingAt(double x) {
+			return lookup(bearing, x);
+		}
+
+		/**
+		 * @return the distance along the floor, in inches, to a point at
+		 *         the target height seen on row y, interpolated between rows.
+		 *         NaN if the row can not see the target height.
+		 */
+		public double distanceAt(double y) {
+			return lookup(distance, y);
+		}
+
+		private static double lookup(double[] table, double at) {
+			if (at <= 0) {
+				return table[0];
+			}
+			int last = table.length - 1;
+			if (at >= last) {
+				return table[last];
+			}
+			int i = (int) at;
+			double fraction = at - i;
+			return table[i] + (table[i + 1] - table[i]) * fraction;
+		}
+	}
+
+	private CameraModel(Properties properties) {
+		calibrationWidth = get(properties, "width", 320);
+		calibrationHeight = get(properties, "height", 240);
+		// 160 / tan(30.5 degrees)
+		fx = get(properties, "fx", 271.7);
+		fy = get(properties, "fy", fx);
+		cx = get(properties, "cx", (calibrationWidth - 1) / 2);
+		cy = get(properties, "cy", (calibrationHeight - 1) / 2);
+		k1 = get(properties, "k1", 0);
+		k2 = get(properties, "k2", 0);
+		p1 = get(properties, "p1", 0);
+		p2 = get(properties, "p2", 0);
+		k3 = get(properties, "k3", 0);
+		cameraHeight = get(properties, "cameraHeight", 20);
+		pitch = Math.toRadians(get(properties, "cameraPitch", 0));
+		yaw = Math.toRadians(get(properties, "cameraYaw", 0));
+		// The bottom of the peg target strips
+		targetHeight = get(properties, "targetHeight", 10.75);
+	}
+
+	private static double get(Properties properties, String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+
+	public static CameraModel fromProperties(Properties properties) {
+		return new CameraModel(properties);
+	}
+
+	public static CameraModel load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		try {
+			return new CameraModel(properties);
+		} catch (NumberFormatException ex) {
+			throw new IOException("Bad number in " + file + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Precomputes the lookups for a frame size. Frames of another size than
+	 * the calibration are taken to be the same view scaled, as when a camera
+	 * switches modes.
+	 */
+	public Tables tablesFor(int width, int height) {
+		double scaleX = width / calibrationWidth;
+		double scaleY = height / calibrationHeight;
+		double[] bearing = new double[width];
+		for (int x = 0; x < width; x++) {
+			bearing[x] = Math.atan((x - cx * scaleX) / (fx * scaleX)) - yaw;
+		}
+		double[] distance = new double[height];
+		double rise = targetHeight - cameraHeight;
+		for (int y = 0; y < height; y++) {
+			double elevation = pitch + Math.atan((cy * scaleY - y) / (fy * scaleY));
+			double run = rise / Math.tan(elevation);
+			// Behind the camera, or looking along the target height
+			distance[y] = run > 0 && !Double.isInfinite(run) ? run : Double.NaN;
+		}
+		if (!hasDistortion()) {
+			return new Tables(width, height, bearing, distance, null, 0, 0);
+		}
+		// Nodes every step pixels, and one on or past the last pixel
+		int step = Math.max(1, width / Tables.GRID_COLUMNS);
+		int gridColumns = (width - 2) / step + 2;
+		int gridRows = (height - 2) / step + 2;
+		double[] grid = new double[gridColumns * gridRows * 2];
+		for (int row = 0, i = 0; row < gridRows; row++) {
+			for (int column = 0; column < gridColumns; column++, i += 2) {
+				grid[i] = column * step;
+				grid[i + 1] = row * step;
+				undistortPoint(grid, i, width, height);
+			}
+		}
+		return new Tables(width, height, bearing, distance, grid, step, gridColumns);
+	}
+
+	/**
+	 * @return true if any distortion coefficient is set
+	 */
+	public boolean hasDistortion() {
+		return k1 != 0 || k2 != 0 || p1 != 0 || p2 != 0 || k3 != 0;
+	}
+
+	/**
+	 * Moves a point of a frame to where it would be without lens distortion,
+	 * by inverting the distortion model iteratively, as OpenCV's
+	 * undistortPoints does. This is what the grid of the tables is made with;
+	 * it is too slow to run on every corner of every frame.
+	 *
+	 * @param xy
+	 *            x and y of the point, replaced by the corrected ones
+	 * @param offset
+	 *            index of x in xy
+	 */
+	public void undistortPoint(double[] xy, int offset, int width, int height) {
+		double scaleX = width / calibrationWidth;
+		double scaleY = height / calibrationHeight;
+		double x0 = (xy[offset] - cx * scaleX) / (fx * scaleX);
+		double y0 = (xy[offset + 1] - cy * scaleY) / (fy * scaleY);
+		double x = x0;
+		double y = y0;
+		for (int i = 0; i < UNDISTORT_ITERATIONS; i++) {
+			double r2 = x * x + y * y;
+			double radial = 1 / (1 + ((k3 * r2 + k2) * r2 + k1) * r2);
+			double dx = 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+			double dy = p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+			x = (x0 - dx) * radial;
+			y = (y0 - dy) * radial;
+		}
+		xy[offset] = x * fx * scaleX + cx * scaleX;
+		xy[offset + 1] = y * fy * scaleY + cy * scaleY;
+	}
+
+	public double getFx() {
+		return fx;
+	}
+
+	public double getFy() {
+		return fy;
+	}
+
+	public double getCx() {
+		return cx;
+	}
+
+	public double getCy() {
+		return cy;
+	}
+
+	public double getCalibrationWidth() {
+		return calibrationWidth;
+	}
+
+	public double getCalibrationHeight() {
+		return calibrationHeight;
+	}
+
+	public double getCameraHeight() {
+		return cameraHeight;
+	}
+
+	/**
+	 * @return radians the camera is tilted up from level
+	 */
+	public double getPitch() {
+		return pitch;
+	}
+
+	/**
+	 * @return radians the camera is turned left of the robot's front
+	 */
+	public double getYaw() {
+		return yaw;
+	}
+
+	public double getTargetHeight() {
+		return targetHeight;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%.0fx%.0f fx %.1f fy %.1f cx %.1f cy %.1f, k1 %.3f k2 %.3f p1 %.4f p2 %.4f k3 %.3f, %.1f in up, pitch %.1f, yaw %.1f",
+				calibrationWidth, calibrationHeight, fx, fy, cx, cy, k1, k2, p1, p2, k3, cameraHeight,
+				Math.toDegrees(pitch), Math.toDegrees(yaw));
+	}
+}
@@ -0,0 +1,181 @@
+package org.team1635.vision;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Thresholds a BGR image on HSV ranges in a single pass, without converting it
+ * to HSV.
+ *
+ * <p>
+ * Every BGR color maps to a fixed HSV color, so whether a pixel is inside the
+ * HSV ranges only depends on its BGR value. When the ranges are set we run
+ * every BGR color once through the same cvtColor and inRange the HSV
+ * threshold uses, and remember the answer as one bit per color. Thresholding a
+ * frame is then one table lookup per pixel, done on all cores.
+ *
+ * <p>
+ * The table can be quantized: with q quantization bits the lowest q bits of
+ * each channel are ignored and every cell of the color cube takes the answer
+ * of its center color. With q = 0 the table has all 16M colors (2 MB) and
+ * gives exactly the same mask as cvtColor and inRange; with q = 2 it is 32 KB
+ * and fits in the Pi's L1 cache, at the cost of a few pixels near the edges of
+ * the ranges.
+ */
+public class ColorThresholdLut {
+
+	private final int quantization;
+	private final int channelBits;
+	private final long[] table;
+
+	// Frame buffers, grown to the largest frame seen
+	private byte[] bgr = new byte[0];
+	private byte[] mask = new byte[0];
+	private int rows;
+	private int cols;
+
+	private final RowBand[] bands;
+	private final RecursiveAction allBands = new RecursiveAction() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(bands);
+		}
+	};
+
+	/**
+	 * Looks up a band of rows of the frame.
+	 */
+	private class RowBand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		int firstRow;
+		int endRow;
+
+		@Override
+		protected void compute() {
+			lookup(firstRow, endRow);
+		}
+	}
+
+	/**
+	 * @param quantization
+	 *            how many low bits of each channel to ignore, 0 to 4
+	 */
+	public ColorThresholdLut(int quantization) {
+		if (quantization < 0 || quantization > 4) {
+			throw new IllegalArgumentException("Quantization must be between 0 and 4 bits");
+		}
+		this.quantization = quantization;
+		this.channelBits = 8 - quantization;
+		this.table = new long[Math.max(1, (1 << (3 * channelBits)) / 64)];
+		this.bands = new RowBand[VisionWorkers.parallelism()];
+		for (int i = 0; i < bands.length; i++) {
+			bands[i] = new RowBand();
+		}
+	}
+
+	public int getQuantization() {
+		return quantization;
+	}
+
+	/**
+	 * Recomputes the table for new HSV ranges. This runs cvtColor on every
+	 * cell of the color cube, so it takes a while; do it when the ranges
+	 * change, not per frame.
+	 */
+	public void build(Scalar minHsv, Scalar maxHsv) {
+		int cells = 1 << channelBits;
+		int half = (1 << quantization) >> 1;
+		// One blue plane of the cube at a time: green down, red across
+		Mat plane = new Mat(cells, cells, CvType.CV_8UC3);
+		Mat hsv = new Mat();
+		Mat in = new Mat();
+		byte[] planeBytes = new byte[cells * cells * 3];
+		byte[] inBytes = new byte[cells * cells];
+		try {
+			for (int b = 0; b < cells; b++) {
+				int i = 0;
+				for (int g = 0; g < cells; g++) {
+					for (int r = 0; r < cells; r++) {
+						planeBytes[i++] = (byte) ((b << quantization) + half);
+						planeBytes[i++] = (byte) ((g << quantization) + half);
+						planeBytes[i++] = (byte) ((r << quantization) + half);
+					}
+				}
+				plane.put(0, 0, planeBytes);
+				Imgproc.cvtColor(plane, hsv, Imgproc.COLOR_BGR2HSV);
+				Core.inRange(hsv, minHsv, maxHsv, in);
+				in.get(0, 0, inBytes);
+				int base = b << (2 * channelBits);
+				for (int j = 0; j < inBytes.length; j++) {
+					int index = base + j;
+					if (inBytes[j] != 0) {
+						table[index >>> 6] |= 1L << index;
+					} else {
+						table[index >>> 6] &= ~(1L << index);
+					}
+				}
+			}
+		} finally {
+			plane.release();
+			hsv.release();
+			in.release();
+		}
+	}
+
+	/**
+	 * Thresholds a BGR image into a mask that is 255 where the pixel is inside
+	 * the ranges and 0 elsewhere, like Core.inRange would.
+	 *
+	 * @param input
+	 *            8 bit, 3 channel BGR image. May be a region of a larger image.
+	 * @param out
+	 *            receives the mask
+	 */
+	public void apply(Mat input, Mat out) {
+		rows = input.rows();
+		cols = input.cols();
+		int pixels = rows * cols;
+		if (bgr.length < pixels * 3) {
+			bgr = new byte[pixels * 3];
+			mask = new byte[pixels];
+		}
+		input.get(0, 0, bgr);
+
+		int perBand = (rows + bands.length - 1) / bands.length;
+		for (int i = 0; i < bands.length; i++) {
+			bands[i].firstRow = Math.min(rows, i * perBand);
+			bands[i].endRow = Math.min(rows, (i + 1) * perBand);
+			bands[i].reinitialize();
+		}
+		allBands.reinitialize();
+		VisionWorkers.pool().invoke(allBands);
+
+		out.create(rows, cols, CvType.CV_8UC1);
+		out.put(0, 0, mask);
+	}
+
+	private void lookup(int firstRow, int endRow) {
+		final long[] table = this.table;
+		final byte[] bgr = this.bgr;
+		final byte[] mask = this.mask;
+		final int q = quantization;
+		final int greenShift = channelBits;
+		final int blueShift = 2 * channelBits;
+		int p = firstRow * cols;
+		int end = endRow * cols;
+		int i = p * 3;
+		for (; p < end; p++, i += 3) {
+			int index = (((bgr[i] & 0xff) >>> q) << blueShift) | (((bgr[i + 1] & 0xff) >>> q) << greenShift)
+					| ((bgr[i + 2] & 0xff) >>> q);
+			mask[p] = (table[index >>> 6] & (1L << index)) != 0 ? (byte) 255 : 0;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.team1635.vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+
+/**
+ * The geometry of one contour, computed in Java from a single bulk copy of its
+ * points.
+ *
+ * <p>
+ * {@link #load(MatOfPoint)} copies the points out of the Mat once and
+ * computes the bounding box, area and perimeter in the same pass over them.
+ * The convex hull is only computed when asked for with
+ * {@link #computeHull()}, since most contours are rejected before that. The
+ * results give the same figures as Imgproc.boundingRect, contourArea,
+ * arcLength (closed) and convexHull, without a JNI call per point or a copy to
+ * MatOfPoint2f.
+ *
+ * <p>
+ * One instance is reused for contour after contour; it is not thread safe.
+ */
+public class ContourGeometry {
+
+	// x, y pairs
+	private int[] points = new int[512];
+	private int pointCount;
+
+	private int minX;
+	private int minY;
+	private int maxX;
+	private int maxY;
+	private double area;
+	private double perimeter;
+
+	// Points sorted by x then y, packed as x << 32 | y
+	private long[] sorted = new long[256];
+	// x, y pairs, counter-clockwise like convexHull gives them
+	private int[] hull = new int[128];
+	private int hullCount;
+	private double hullArea;
+
+	/**
+	 * Copies the points of a contour and measures it.
+	 *
+	 * @param contour
+	 *            A contour as findContours gives them, CV_32SC2 with at least
+	 *            one point
+	 */
+	public void load(MatOfPoint contour) {
+		pointCount = contour.rows();
+		if (points.length < pointCount * 2) {
+			points = new int[pointCount * 4];
+		}
+		contour.get(0, 0, points);
+		hullCount = -1;
+
+		int x0 = points[0];
+		int y0 = points[1];
+		minX = maxX = x0;
+		minY = maxY = y0;
+		long twiceArea = 0;
+		double length = 0;
+		int px = x0;
+		int py = y0;
+		for (int i = 1; i <= pointCount; i++) {
+			// Wraps around to close the contour
+			int x = i < pointCount ? points[2 * i] : x0;
+			int y = i < pointCount ? points[2 * i + 1] : y0;
+			if (x < minX) {
+				minX = x;
+			} else if (x > maxX) {
+				maxX = x;
+			}
+			if (y < minY) {
+				minY = y;
+			} else if (y > maxY) {
+				maxY = y;
+			}
+			twiceArea += (long) px * y - (long) x * py;
+			int dx = x - px;
+			int dy = y - py;
+			length += Math.sqrt(dx * dx + dy * dy);
+			px = x;
+			py = y;
+		}
+		area = Math.abs(twiceArea) / 2.0;
+		perimeter = length;
+	}
+
+	/**
+	 * Computes the convex hull of the loaded contour with Andrew's monotone
+	 * chain. Points on the edges of the hull are left out, as convexHull does.
+	 */
+	public void computeHull() {
+		if (hullCount >= 0) {
+			return;
+		}
+		int n = pointCount;
+		if (sorted.length < n) {
+			sorted = new long[n * 2];
+		}
+		for (int i = 0; i < n; i++) {
+			sorted[i] = ((long) points[2 * i] << 32) | (points[2 * i + 1] & 0xffffffffL);
+		}
+		Arrays.sort(sorted, 0, n);
+		if (hull.length < (n + 1) * 2) {
+			hull = new int[(n + 1) * 4];
+		}
+
+		// Lower chain from left to right, then upper chain back
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			k = addToChain(k, 0, sorted[i]);
+		}
+		int lower = k;
+		for (int i = n - 2; i >= 0; i--) {
+			k = addToChain(k, lower - 1, sorted[i]);
+		}
+		// The first point was added again at the end
+		hullCount = Math.max(k - 1, 1);
+
+		long twiceArea = 0;
+		for (int i = 0; i < hullCount; i++) {
+			int j = i + 1 < hullCount ? i + 1 : 0;
+			twiceArea += (long) hull[2 * i] * hull[2 * j + 1] - (long) hull[2 * j] * hull[2 * i + 1];
+		}
+		hullArea = Math.abs(twiceArea) / 2.0;
+	}
+
+	/**
+	 * Pushes a point on the hull, first popping the points that it shows are
+	 * not convex. Points at index floor and below are never popped.
+	 *
+	 * @return the new hull size
+	 */
+	private int addToChain(int k, int floor, long point) {
+		int x = (int) (point >> 32);
+		int y = (int) point;
+		while (k >= floor + 2) {
+			int ax = hull[2 * (k - 2)];
+			int ay = hull[2 * (k - 2) + 1];
+			int bx = hull[2 * (k - 1)];
+			int by = hull[2 * (k - 1) + 1];
+			long cross = (long) (bx - ax) * (y - ay) - (long) (by - ay) * (x - ax);
+			if (cross > 0) {
+				break;
+			}
+			k--;
+		}
+		hull[2 * k] = x;
+		hull[2 * k + 1] = y;
+		return k + 1;
+	}
+
+	/**
+	 * Writes the hull computed by {@link #computeHull()} into a Mat, with one
+	 * bulk transfer.
+	 */
+	public void getHull(MatOfPoint mopHull) {
+		mopHull.create(hullCount, 1, CvType.CV_32SC2);
+		mopHull.put(0, 0, hull);
+	}
+
+	public int getPointCount() {
+		return pointCount;
+	}
+
+	public int getX() {
+		return minX;
+	}
+
+	public int getY() {
+		return minY;
+	}
+
+	/**
+	 * @return the width of the bounding box, counting both edge pixels like
+	 *         boundingRect
+	 */
+	public int getWidth() {
+		return maxX - minX + 1;
+	}
+
+	public int getHeight() {
+		return maxY - minY + 1;
+	}
+
+	/**
+	 * @return the width of the bounding box over its height
+	 */
+	public double getRatio() {
+		return getWidth() / (double) getHeight();
+	}
+
+	public double getArea() {
+		return area;
+	}
+
+	/**
+	 * @return the length of the contour, closed
+	 */
+	public double getPerimeter() {
+		return perimeter;
+	}
+
+	public int getHullCount() {
+		return hullCount;
+	}
+
+	public double getHullArea() {
+		return hullArea;
+	}
+
+	/**
+	 * @return the area of the contour over the area of its hull, in percent.
+	 *         Computes the hull if needed.
+	 */
+	public double getSolidity() {
+		computeHull();
+		return 100 * area / hullArea;
+	}
+}
@@ -0,0 +1,89 @@
+package org.team1635.vision;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.opencv.core.Mat;
+
+/**
+ * A pool of Mats that is handed out in order during a frame and rewound at
+ * the start of the next one.
+ *
+ * <p>
+ * The Mats themselves are never released between frames, so once they have
+ * grown to the size the pipeline needs, OpenCV reuses their native buffers
+ * instead of allocating new ones. The arena only grows when a frame needs more
+ * Mats than any frame before it.
+ */
+public class MatArena<T extends Mat> implements AutoCloseable {
+
+	private final Supplier<T> factory;
+	private Mat[] mats;
+	private int size;
+	private int next;
+
+	/**
+	 * @param factory
+	 *            creates a new, empty Mat
+	 * @param capacity
+	 *            how many Mats to allocate up front
+	 */
+	public MatArena(Supplier<T> factory, int capacity) {
+		this.factory = factory;
+		this.mats = new Mat[Math.max(capacity, 1)];
+		for (int i = 0; i < capacity; i++) {
+			mats[i] = factory.get();
+		}
+		this.size = capacity;
+	}
+
+	/**
+	 * Hands out the next Mat of this frame. Its content is whatever the
+	 * previous frame left in it.
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire() {
+		if (next == size) {
+			if (size == mats.length) {
+				mats = Arrays.copyOf(mats, mats.length * 2);
+			}
+			mats[size++] = factory.get();
+		}
+		return (T) mats[next++];
+	}
+
+	/**
+	 * Makes every Mat available again. Call once at the start of each frame,
+	 * after nothing refers to the previous frame's Mats any more.
+	 */
+	public void reset() {
+		next = 0;
+	}
+
+	/**
+	 * @return how many Mats were handed out since the last reset
+	 */
+	public int inUse() {
+		return next;
+	}
+
+	/**
+	 * @return how many Mats the arena holds
+	 */
+	public int capacity() {
+		return size;
+	}
+
+	/**
+	 * Releases the native memory of every Mat in the arena.
+	 */
+	@Override
+	public void close() {
+		for (int i = 0; i < size; i++) {
+			mats[i].release();
+			mats[i] = null;
+		}
+		size = 0;
+		next = 0;
+	}
+}
@@ -0,0 +1,149 @@
+package org.team1635.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Filters contours, takes the hulls of the ones kept and approximates the
+ * hulls by polygons, on all cores.
+ *
+ * <p>
+ * The contours are split into one run of consecutive contours per core. Each
+ * run is measured with its own ContourGeometry, and its hulls and polygons
+ * come from its own arenas, so the runs share nothing while they work. The
+ * survivors are then appended run by run, which keeps them in the order of
+ * the input: the outputs are the same as those of filterContours,
+ * convexHulls and approxPolys run one after the other.
+ *
+ * <p>
+ * Forking costs more than filtering a few contours, so this only pays off
+ * for cluttered frames with hundreds of them.
+ */
+public class ParallelContours implements AutoCloseable {
+
+	private final VisionPipeline pipeline;
+	private final Run[] runs;
+	private List<MatOfPoint> input;
+	private final RecursiveAction allRuns = new RecursiveAction() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(runs);
+		}
+	};
+
+	/**
+	 * Processes the contours from first to end, not included.
+	 */
+	private class Run extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		int first;
+		int end;
+		final ContourGeometry geometry = new ContourGeometry();
+		final MatOfPoint2f contour2f = new MatOfPoint2f();
+		final MatArena<MatOfPoint> hullArena = new MatArena<MatOfPoint>(MatOfPoint::new, 0);
+		final MatArena<MatOfPoint2f> polyArena = new MatArena<MatOfPoint2f>(MatOfPoint2f::new, 0);
+		final ArrayList<MatOfPoint> kept = new ArrayList<MatOfPoint>();
+		final ArrayList<MatOfPoint> hulls = new ArrayList<MatOfPoint>();
+		final ArrayList<MatOfPoint2f> polys = new ArrayList<MatOfPoint2f>();
+
+		@Override
+		protected void compute() {
+			kept.clear();
+			hulls.clear();
+			polys.clear();
+			for (int i = first; i < end; i++) {
+				MatOfPoint contour = input.get(i);
+				geometry.load(contour);
+				if (!pipeline.passesFilter(geometry)) {
+					continue;
+				}
+				MatOfPoint hull = hullArena.acquire();
+				geometry.getHull(hull);
+				MatOfPoint2f poly = polyArena.acquire();
+				hull.convertTo(contour2f, CvType.CV_32FC2);
+				Imgproc.approxPolyDP(contour2f, poly, VisionPipeline.APPROX_EPSILON, true);
+				kept.add(contour);
+				hulls.add(hull);
+				polys.add(poly);
+			}
+		}
+	}
+
+	/**
+	 * @param pipeline
+	 *            whose filter settings decide which contours are kept
+	 */
+	public ParallelContours(VisionPipeline pipeline) {
+		this.pipeline = pipeline;
+		this.runs = new Run[VisionWorkers.parallelism()];
+		for (int i = 0; i < runs.length; i++) {
+			runs[i] = new Run();
+		}
+	}
+
+	/**
+	 * Makes the hulls and polygons of the last frame available again. Call
+	 * at the start of each frame, like MatArena.reset.
+	 */
+	public void reset() {
+		for (int i = 0; i < runs.length; i++) {
+			runs[i].hullArena.reset();
+			runs[i].polyArena.reset();
+		}
+	}
+
+	/**
+	 * Filters contours and gives the kept ones with their hulls and polygons,
+	 * all three lists in the order of the input. The hulls and polygons are
+	 * valid until the next reset.
+	 */
+	public void process(List<MatOfPoint> contours, List<MatOfPoint> filtered, List<MatOfPoint> hulls,
+			List<MatOfPoint2f> polys) {
+		input = contours;
+		int perRun = (contours.size() + runs.length - 1) / runs.length;
+		for (int i = 0; i < runs.length; i++) {
+			runs[i].first = Math.min(contours.size(), i * perRun);
+			runs[i].end = Math.min(contours.size(), (i + 1) * perRun);
+			runs[i].reinitialize();
+		}
+		allRuns.reinitialize();
+		VisionWorkers.pool().invoke(allRuns);
+		input = null;
+
+		filtered.clear();
+		hulls.clear();
+		polys.clear();
+		for (int i = 0; i < runs.length; i++) {
+			filtered.addAll(runs[i].kept);
+			hulls.addAll(runs[i].hulls);
+			polys.addAll(runs[i].polys);
+			runs[i].kept.clear();
+			runs[i].hulls.clear();
+			runs[i].polys.clear();
+		}
+	}
+
+	/**
+	 * Releases the native memory of the hulls and polygons.
+	 */
+	@Override
+	public void close() {
+		for (int i = 0; i < runs.length; i++) {
+			runs[i].kept.clear();
+			runs[i].hulls.clear();
+			runs[i].polys.clear();
+			runs[i].hullArena.close();
+			runs[i].polyArena.close();
+			runs[i].contour2f.release();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.team1635.vision;
+
+import java.util.Arrays;
+
+/**
+ * The tunable parameters of the pipeline: the HSV threshold ranges and the
+ * contour filter criteria.
+ *
+ * <p>
+ * A config never changes once made; {@link #with(Param, double)} makes a new
+ * one with a parameter changed. The pipeline reads the current config once at
+ * the start of each frame, so a new config, set from any thread, is picked up
+ * whole on the next frame and never half way through one.
+ */
+public final class PipelineConfig {
+
+	/**
+	 * The parameters, with the key they are tuned by and their default.
+	 */
+	public enum Param {
+		// Find the values by experimenting with bradubv/OpenCVTutorial
+		HUE_MIN("hueMin", 0.0),
+		HUE_MAX("hueMax", 173.0),
+		SAT_MIN("satMin", 0.0),
+		SAT_MAX("satMax", 32.0),
+		VAL_MIN("valMin", 249.0),
+		VAL_MAX("valMax", 255.0),
+		// Filter_Contours0 settings
+		MIN_AREA("minArea", 0.0),
+		// 75 didn't work from afar, 60 doesn't pick up target from 83 inches
+		// away
+		MIN_PERIMETER("minPerimeter", 50.0),
+		MIN_WIDTH("minWidth", 0.0),
+		MAX_WIDTH("maxWidth", 1000.0),
+		MIN_HEIGHT("minHeight", 0.0),
+		MAX_HEIGHT("maxHeight", 1000.0),
+		MIN_SOLIDITY("minSolidity", 75.53956834532374),
+		MAX_SOLIDITY("maxSolidity", 100),
+		MIN_VERTICES("minVertices", 0.0),
+		MAX_VERTICES("maxVertices", 1000000.0),
+		MIN_RATIO("minRatio", 0.0),
+		MAX_RATIO("maxRatio", 1000.0);
+
+		private final String key;
+		private final double defaultValue;
+
+		Param(String key, double defaultValue) {
+			this.key = key;
+			this.defaultValue = defaultValue;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public double getDefault() {
+			return defaultValue;
+		}
+
+		/**
+		 * @return the parameter tuned by a key, or null if there is none
+		 */
+		public static Param forKey(String key) {
+			for (Param param : PARAMS) {
+				if (param.key.equals(key)) {
+					return param;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final Param[] PARAMS = Param.values();
+
+	public static final PipelineConfig DEFAULTS = createDefaults();
+
+	private final double[] values;
+
+	private PipelineConfig(double[] values) {
+		this.values = values;
+	}
+
+	private static PipelineConfig createDefaults() {
+		double[] values = new double[PARAMS.length];
+		for (Param param : PARAMS) {
+			values[param.ordinal()] = param.getDefault();
+		}
+		return new PipelineConfig(values);
+	}
+
+	public double get(Param param) {
+		return values[param.ordinal()];
+	}
+
+	/**
+	 * @return a config like this one but with one parameter changed, or this
+	 *         config if the parameter already has that value
+	 */
+	public PipelineConfig with(Param param, double value) {
+		if (values[param.ordinal()] == value) {
+			return this;
+		}
+		double[] copy = values.clone();
+		copy[param.ordinal()] = value;
+		return new PipelineConfig(copy);
+	}
+
+	/**
+	 * @return a config like this one but with other HSV ranges, each given as
+	 *         min and max
+	 */
+	public PipelineConfig withHsv(double[] hueRange, double[] satRange, double[] valRange) {
+		return with(Param.HUE_MIN, hueRange[0]).with(Param.HUE_MAX, hueRange[1]).with(Param.SAT_MIN, satRange[0])
+				.with(Param.SAT_MAX, satRange[1]).with(Param.VAL_MIN, valRange[0]).with(Param.VAL_MAX, valRange[1]);
+	}
+
+	/**
+	 * @return true if the other config thresholds frames the same way
+	 */
+	public boolean sameThreshold(PipelineConfig other) {
+		for (int i = Param.HUE_MIN.ordinal(); i <= Param.VAL_MAX.ordinal(); i++) {
+			if (values[i] != other.values[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof PipelineConfig && Arrays.equals(values, ((PipelineConfig) other).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Param param : PARAMS) {
+			text.append(text.length() == 0 ? "" : ", ").append(param.key).append(" ").append(get(param));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,142 @@
+package org.team1635.vision;
+
+/**
+ * Latency histograms of each step of VisionPipeline.process and of the whole
+ * call, and how many contours are left after each step.
+ *
+ * <p>
+ * The pipeline records into it once per frame; anyone may read it from
+ * another thread. The figures cover the frames since the last
+ * {@link #reset()}.
+ */
+public class PipelineStats {
+
+	/**
+	 * The timed steps of the pipeline.
+	 */
+	public enum Step {
+		THRESHOLD, FIND_CONTOURS, FILTER_CONTOURS, CONVEX_HULLS, APPROX_POLYS, FIND_STRIPS, TOTAL
+	}
+
+	/**
+	 * What is counted after the steps.
+	 */
+	public enum Count {
+		/** Contours found by findContours */
+		CONTOURS,
+		/** Contours left by the filter */
+		FILTERED,
+		/** Polygons with 4 or 5 vertices, the ones findStrips looks at */
+		QUAD_CANDIDATES,
+		/** Quadrilaterals kept as strips */
+		STRIPS
+	}
+
+	private static final Step[] STEPS = Step.values();
+	private static final Count[] COUNTS = Count.values();
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STEPS.length];
+	private final long[] countSums = new long[COUNTS.length];
+	private final int[] lastCounts = new int[COUNTS.length];
+	private long frames;
+
+	public PipelineStats() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records one frame.
+	 *
+	 * @param stepNanos
+	 *            time spent in each step, indexed by Step ordinal
+	 * @param counts
+	 *            the counts, indexed by Count ordinal
+	 */
+	synchronized void record(long[] stepNanos, int[] counts) {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i].record(stepNanos[i]);
+		}
+		for (int i = 0; i < countSums.length; i++) {
+			countSums[i] += counts[i];
+			lastCounts[i] = counts[i];
+		}
+		frames++;
+	}
+
+	public synchronized long getFrames() {
+		return frames;
+	}
+
+	public synchronized double getP50Ms(Step step) {
+		return histograms[step.ordinal()].percentile(0.5) / 1e6;
+	}
+
+	public synchronized double getP99Ms(Step step) {
+		return histograms[step.ordinal()].percentile(0.99) / 1e6;
+	}
+
+	public synchronized double getMaxMs(Step step) {
+		return histograms[step.ordinal()].getMax() / 1e6;
+	}
+
+	public synchronized double getMeanMs(Step step) {
+		return histograms[step.ordinal()].getMean() / 1e6;
+	}
+
+	public synchronized int getLastCount(Count count) {
+		return lastCounts[count.ordinal()];
+	}
+
+	public synchronized double getAverageCount(Count count) {
+		return frames == 0 ? 0 : countSums[count.ordinal()] / (double) frames;
+	}
+
+	/**
+	 * Adds the frames recorded in another PipelineStats to this one, so a
+	 * longer period can be kept next to a shorter one that is reset more
+	 * often.
+	 */
+	public synchronized void add(PipelineStats other) {
+		synchronized (other) {
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i].add(other.histograms[i]);
+			}
+			for (int i = 0; i < countSums.length; i++) {
+				countSums[i] += other.countSums[i];
+			}
+			if (other.frames > 0) {
+				System.arraycopy(other.lastCounts, 0, lastCounts, 0, lastCounts.length);
+			}
+			frames += other.frames;
+		}
+	}
+
+	/**
+	 * Starts a new period.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i].reset();
+		}
+		for (int i = 0; i < countSums.length; i++) {
+			countSums[i] = 0;
+		}
+		frames = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(frames).append(" frames");
+		for (Step step : STEPS) {
+			text.append(String.format(", %s p50 %.2f p99 %.2f max %.2f ms", step, getP50Ms(step), getP99Ms(step),
+					getMaxMs(step)));
+		}
+		for (Count count : COUNTS) {
+			text.append(String.format(", %s avg %.1f", count, getAverageCount(count)));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,335 @@
+package org.team1635.vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * The quadrilaterals found in a frame, stored as flat arrays of primitives
+ * instead of one object per quad and per corner.
+ *
+ * <p>
+ * Each quad is a slot holding its four corners, its bounding box and its
+ * center. The slots are reused across frames, so once the buffer has grown to
+ * the number of quads a frame has, adding, healing, merging and sorting them
+ * allocates nothing. {@link Quadrilateral} is a view of one slot, for code
+ * that wants objects.
+ *
+ * <p>
+ * The bounding box and center follow what Imgproc.boundingRect gives for the
+ * corners rounded to pixels: the width and height count both edge pixels, and
+ * the center is the top left plus half of them, rounded down.
+ */
+public class QuadBuffer {
+
+	/** Corner indexes, in the order they are stored */
+	public static final int TOP_LEFT = 0;
+	public static final int TOP_RIGHT = 1;
+	public static final int BOTTOM_RIGHT = 2;
+	public static final int BOTTOM_LEFT = 3;
+
+	private static final int CORNERS = 4;
+	// Two quads whose centers are closer than this in x are one strip, in
+	// pixels of a frame 320 wide
+	private static final double LINE_UP_TOLERANCE = 5;
+	private double lineUpTolerance = LINE_UP_TOLERANCE;
+
+	// x, y of each corner, 8 per slot
+	private double[] corners;
+	// x, y, width, height, 4 per slot
+	private int[] bounds;
+	// x, y, 2 per slot
+	private double[] centers;
+	private int size;
+
+	// Scratch for healing a polygon
+	private float[] polyPoints2f = new float[16];
+	private int[] polyPoints = new int[16];
+	private final int[] quadrantCounts = new int[CORNERS];
+	// Up to two points per quadrant, x, y
+	private final int[] quadrantPoints = new int[CORNERS * 4];
+
+	public QuadBuffer() {
+		this(4);
+	}
+
+	/**
+	 * @param capacity
+	 *            how many quads to make room for up front
+	 */
+	public QuadBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		corners = new double[capacity * CORNERS * 2];
+		bounds = new int[capacity * 4];
+		centers = new double[capacity * 2];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the buffer, keeping its memory.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds an empty quad, with all corners at 0.
+	 *
+	 * @return its slot
+	 */
+	public int allocate() {
+		if (size * 4 == bounds.length) {
+			corners = Arrays.copyOf(corners, corners.length * 2);
+			bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			centers = Arrays.copyOf(centers, centers.length * 2);
+		}
+		int slot = size++;
+		Arrays.fill(corners, slot * CORNERS * 2, (slot + 1) * CORNERS * 2, 0);
+		updateBounds(slot);
+		return slot;
+	}
+
+	/**
+	 * Heals a polygon from approxPolyDP into a quad and adds it. The corners
+	 * are rounded to whole pixels first, like converting the polygon to
+	 * CV_32S.
+	 *
+	 * @return the slot of the quad, or -1 if the polygon is denaturated: it
+	 *         does not have one or two points in each quarter of its bounding
+	 *         box
+	 */
+	public int add(MatOfPoint2f poly) {
+		int count = poly.rows();
+		if (polyPoints2f.length < count * 2) {
+			polyPoints2f = new float[count * 4];
+		}
+		if (polyPoints.length < count * 2) {
+			polyPoints = new int[count * 4];
+		}
+		poly.get(0, 0, polyPoints2f);
+		for (int i = 0; i < count * 2; i++) {
+			polyPoints[i] = (int) Math.rint(polyPoints2f[i]);
+		}
+		return heal(polyPoints, count);
+	}
+
+	/**
+	 * Heals a polygon into a quad and adds it.
+	 *
+	 * @return the slot of the quad, or -1 if the polygon is denaturated
+	 */
+	public int add(MatOfPoint poly) {
+		int count = poly.rows();
+		if (polyPoints.length < count * 2) {
+			polyPoints = new int[count * 4];
+		}
+		poly.get(0, 0, polyPoints);
+		return heal(polyPoints, count);
+	}
+
+	/**
+	 * Sorts the points into the four quarters of their bounding box. A quarter
+	 * with one point gives that corner; a quarter with two points, where a
+	 * corner was cut off, gives the hidden corner where their edges would
+	 * meet.
+	 */
+	private int heal(int[] points, int count) {
+		if (count == 0) {
+			return -1;
+		}
+		int minX = points[0];
+		int minY = points[1];
+		int maxX = minX;
+		int maxY = minY;
+		for (int i = 1; i < count; i++) {
+			minX = Math.min(minX, points[2 * i]);
+			maxX = Math.max(maxX, points[2 * i]);
+			minY = Math.min(minY, points[2 * i + 1]);
+			maxY = Math.max(maxY, points[2 * i + 1]);
+		}
+		int centerX = minX + (maxX - minX + 1) / 2;
+		int centerY = minY + (maxY - minY + 1) / 2;
+
+		Arrays.fill(quadrantCounts, 0);
+		for (int i = 0; i < count; i++) {
+			int x = points[2 * i];
+			int y = points[2 * i + 1];
+			int corner;
+			if (x > centerX) {
+				corner = y > centerY ? BOTTOM_RIGHT : TOP_RIGHT;
+			} else {
+				corner = y > centerY ? BOTTOM_LEFT : TOP_LEFT;
+			}
+			int n = quadrantCounts[corner]++;
+			if (n < 2) {
+				quadrantPoints[corner * 4 + n * 2] = x;
+				quadrantPoints[corner * 4 + n * 2 + 1] = y;
+			}
+		}
+		for (int corner = 0; corner < CORNERS; corner++) {
+			if (quadrantCounts[corner] != 1 && quadrantCounts[corner] != 2) {
+				return -1;
+			}
+		}
+
+		int slot = allocate();
+		for (int corner = 0; corner < CORNERS; corner++) {
+			int q = corner * 4;
+			if (quadrantCounts[corner] == 1) {
+				setCorner(slot, corner, quadrantPoints[q], quadrantPoints[q + 1]);
+			} else {
+				setHiddenCorner(slot, corner, quadrantPoints[q], quadrantPoints[q + 1], quadrantPoints[q + 2],
+						quadrantPoints[q + 3]);
+			}
+		}
+		updateBounds(slot);
+		return slot;
+	}
+
+	/**
+	 * Sets a corner that was cut off from the two points next to it. A top
+	 * corner takes the x of the lower point and the y of the higher one, a
+	 * bottom corner the other way around.
+	 */
+	private void setHiddenCorner(int slot, int corner, int x0, int y0, int x1, int y1) {
+		boolean top = corner == TOP_LEFT || corner == TOP_RIGHT;
+		// y grows downwards, so the larger y is the lower point
+		if (y0 > y1) {
+			setCorner(slot, corner, top ? x0 : x1, top ? y1 : y0);
+		} else {
+			setCorner(slot, corner, top ? x1 : x0, top ? y0 : y1);
+		}
+	}
+
+	/**
+	 * Moves a corner. Call {@link #updateBounds(int)} once all corners are
+	 * set.
+	 */
+	public void setCorner(int slot, int corner, double x, double y) {
+		int i = (slot * CORNERS + corner) * 2;
+		corners[i] = x;
+		corners[i + 1] = y;
+	}
+
+	/**
+	 * Recomputes the bounding box and center of a quad from its corners.
+	 */
+	public void updateBounds(int slot) {
+		int c = slot * CORNERS * 2;
+		int minX = (int) Math.round(corners[c]);
+		int minY = (int) Math.round(corners[c + 1]);
+		int maxX = minX;
+		int maxY = minY;
+		for (int corner = 1; corner < CORNERS; corner++) {
+			int x = (int) Math.round(corners[c + corner * 2]);
+			int y = (int) Math.round(corners[c + corner * 2 + 1]);
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		int b = slot * 4;
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = maxX - minX + 1;
+		bounds[b + 3] = maxY - minY + 1;
+		centers[slot * 2] = minX + bounds[b + 2] / 2;
+		centers[slot * 2 + 1] = minY + bounds[b + 3] / 2;
+	}
+
+	public double getX(int slot, int corner) {
+		return corners[(slot * CORNERS + corner) * 2];
+	}
+
+	public double getY(int slot, int corner) {
+		return corners[(slot * CORNERS + corner) * 2 + 1];
+	}
+
+	public int getBoundsX(int slot) {
+		return bounds[slot * 4];
+	}
+
+	public int getBoundsY(int slot) {
+		return bounds[slot * 4 + 1];
+	}
+
+	public int getWidth(int slot) {
+		return bounds[slot * 4 + 2];
+	}
+
+	public int getHeight(int slot) {
+		return bounds[slot * 4 + 3];
+	}
+
+	public double getCenterX(int slot) {
+		return centers[slot * 2];
+	}
+
+	public double getCenterY(int slot) {
+		return centers[slot * 2 + 1];
+	}
+
+	/**
+	 * @return true if the two quads are above each other, like the two halves
+	 *         of a strip split by the peg
+	 */
+	public boolean lineUp(int a, int b) {
+		return Math.abs(getCenterX(a) - getCenterX(b)) < lineUpTolerance;
+	}
+
+	/**
+	 * @return how far apart in x, in pixels, the centers of two quads may be
+	 *         for {@link #lineUp(int, int)}
+	 */
+	public double getLineUpTolerance() {
+		return lineUpTolerance;
+	}
+
+	/**
+	 * Scales the tolerance of {@link #lineUp(int, int)} for frames of a
+	 * different width.
+	 *
+	 * @param scale
+	 *            the frame width over 320
+	 */
+	public void setFrameScale(double scale) {
+		lineUpTolerance = LINE_UP_TOLERANCE * scale;
+	}
+
+	/**
+	 * Adds the quad made of the bottom corners of the lower quad and the top
+	 * corners of the upper one.
+	 *
+	 * @return the slot of the merged quad
+	 */
+	public int merge(int a, int b) {
+		int lower = getCenterY(a) > getCenterY(b) ? a : b;
+		int upper = lower == a ? b : a;
+		int slot = allocate();
+		copyCorner(lower, slot, BOTTOM_LEFT);
+		copyCorner(lower, slot, BOTTOM_RIGHT);
+		copyCorner(upper, slot, TOP_LEFT);
+		copyCorner(upper, slot, TOP_RIGHT);
+		updateBounds(slot);
+		return slot;
+	}
+
+	private void copyCorner(int from, int to, int corner) {
+		setCorner(to, corner, getX(from, corner), getY(from, corner));
+	}
+
+	/**
+	 * Removes a quad, moving the ones after it down a slot.
+	 */
+	public void remove(int slot) {
+		int next = slot + 1;
+		System.arraycopy(corners, next * CORNERS * 2, corners, slot * CORNERS * 2, (size - next) * CORNERS * 2);
+		System.arraycopy(bounds, next * 4, bounds, slot * 4, (size - next) * 4);
+		System.arraycopy(centers, next * 2, centers, slot * 2, (size - next) * 2);
+		size--;
+	}
+}
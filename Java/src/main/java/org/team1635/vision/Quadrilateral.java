@@ -1,21 +1,17 @@
 package org.team1635.vision;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.opencv.core.*;
-import org.opencv.imgproc.Imgproc;
 
+/**
+ * One quad of a {@link QuadBuffer}, with the old object API. The pipeline
+ * works on the buffer directly; this is for code that wants objects, and
+ * every getter that returns a Point or Rect makes a new one.
+ */
 public class Quadrilateral {
 
-	private MatOfPoint poly; // The polygon given to us.
-	private Point vertices[]; // The quad that approximates that poly
-	private Point topLeft;
-	private Point topRight;
-	private Point bottomRight;
-	private Point bottomLeft;
-
-	private Rect boundingRect;
+	private final QuadBuffer buffer;
+	private final boolean ownsBuffer;
+	private int slot = -1;
 
 	private boolean isDenaturated = false;
 
@@ -28,250 +24,210 @@ public class Quadrilateral {
 	 * fromMatOfPoint2f
 	 */
 	public Quadrilateral() {
-		vertices = new Point[4];
+		this.buffer = new QuadBuffer(1);
+		this.ownsBuffer = true;
+	}
+
+	/**
+	 * A view of a quad that is already in a buffer. It is only valid until
+	 * the buffer is cleared or the quad is removed.
+	 */
+	public Quadrilateral(QuadBuffer buffer, int slot) {
+		this.buffer = buffer;
+		this.ownsBuffer = false;
+		this.slot = slot;
 	}
 
 	public void fromMatOfPoint2f(MatOfPoint2f quadCandidate2f) {
-		MatOfPoint quadCandidate = new MatOfPoint();
-		quadCandidate2f.convertTo(quadCandidate, CvType.CV_32S);
-		fromMatOfPoint(quadCandidate);
+		if (ownsBuffer) {
+			buffer.clear();
+		}
+		slot = buffer.add(quadCandidate2f);
+		isDenaturated = slot < 0;
 	}
 
 	public void fromMatOfPoint(MatOfPoint quadCandidate) {
-		poly = healPoly(quadCandidate);
-
-		if (!(isDenaturated)) {
-			for (int vertCnt = 0; vertCnt < poly.rows(); vertCnt++) {
-				Point point = new Point(poly.get(vertCnt, 0));
-				vertices[vertCnt] = point;
-			}
+		if (ownsBuffer) {
+			buffer.clear();
 		}
+		slot = buffer.add(quadCandidate);
+		isDenaturated = slot < 0;
+	}
+
+	public QuadBuffer getBuffer() {
+		return buffer;
+	}
 
-		setBoundingRect();
+	public int getSlot() {
+		return slot;
 	}
-	
-	private void setBoundingRect() {
-		this.boundingRect = Imgproc.boundingRect(this.poly);
+
+	public Rect getBoundingRect() {
+		if (slot < 0) {
+			return null;
+		}
+		return new Rect(buffer.getBoundsX(slot), buffer.getBoundsY(slot), buffer.getWidth(slot),
+				buffer.getHeight(slot));
 	}
 
+	/**
+	 * @return the height of the bounding box, 0 if the polygon is
+	 *         denaturated
+	 */
 	public int getHeight() {
-		return boundingRect.height;
+		if (slot < 0) {
+			return 0;
+		}
+		return buffer.getHeight(slot);
 	}
 
+	/**
+	 * @return the width of the bounding box, 0 if the polygon is denaturated
+	 */
 	public int getWidth() {
-		return boundingRect.width;
+		if (slot < 0) {
+			return 0;
+		}
+		return buffer.getWidth(slot);
 	}
 
 	public boolean isDenaturated() {
 		return isDenaturated;
 	}
 
+	/**
+	 * Heals a polygon into this quad.
+	 *
+	 * @return the corners top left, top right, bottom right, bottom left, or
+	 *         an empty MatOfPoint if the polygon is denaturated
+	 */
 	public MatOfPoint healPoly(MatOfPoint polyIn) {
-		List<Point> poly = new ArrayList<Point>();
+		fromMatOfPoint(polyIn);
 		MatOfPoint polyOut = new MatOfPoint();
-
-		List<Point> topLeft = new ArrayList<Point>();
-		List<Point> topRight = new ArrayList<Point>();
-		List<Point> bottomRight = new ArrayList<Point>();
-		List<Point> bottomLeft = new ArrayList<Point>();
-
-		Rect boundingRect = Imgproc.boundingRect(polyIn);
-		Point center = new Point(boundingRect.x + boundingRect.width / 2, boundingRect.y + boundingRect.height / 2);
-
-		for (int vertIdx = 0; vertIdx < polyIn.rows(); vertIdx++) {
-			Point currVertex = new Point(polyIn.get(vertIdx, 0));
-
-			if (currVertex.x > center.x) { // this point is on the right
-				if (currVertex.y > center.y) { // this point is on the bottom
-					bottomRight.add(currVertex);
-				} else { // this point is on the top
-					topRight.add(currVertex);
-				}
-			} else { // this point is on the left
-				if (currVertex.y > center.y) { // this point is on bottom
-					bottomLeft.add(currVertex);
-				} else { // this point is on top
-					topLeft.add(currVertex);
-				}
-			}
-		}
-
-		if (topLeft.size() == 1) {
-			poly.add(topLeft.get(0));
-			this.topLeft = topLeft.get(0);
-		} else {
-			if (topLeft.size() == 2) {
-				Point hiddenPoint = findHiddenPoint(topLeft, PolyDirection.TOP_LEFT);
-				poly.add(hiddenPoint);
-				this.topLeft = hiddenPoint;
-			} else {
-				this.isDenaturated = true;
-			}
-		}
-		if (topRight.size() == 1) {
-			poly.add(topRight.get(0));
-			this.topRight = topRight.get(0);
-		} else {
-			if (topRight.size() == 2) {
-				Point hiddenPoint = findHiddenPoint(topRight, PolyDirection.TOP_RIGHT);
-				poly.add(hiddenPoint);
-				this.topRight = hiddenPoint;
-			} else {
-				this.isDenaturated = true;
-			}
-		}
-		if (bottomRight.size() == 1) {
-			poly.add(bottomRight.get(0));
-			this.bottomRight = bottomRight.get(0);
-		} else {
-			if (bottomRight.size() == 2) {
-				Point hiddenPoint = findHiddenPoint(bottomRight, PolyDirection.BOTTOM_RIGHT);
-				poly.add(hiddenPoint);
-				this.bottomRight = hiddenPoint;
-			} else {
-				this.isDenaturated = true;
-			}
-		}
-		if (bottomLeft.size() == 1) {
-			poly.add(bottomLeft.get(0));
-			this.bottomLeft = bottomLeft.get(0);
-		} else {
-			if (bottomLeft.size() == 2) {
-				Point hiddenPoint = findHiddenPoint(bottomLeft, PolyDirection.BOTTOM_LEFT);
-				poly.add(hiddenPoint);
-				this.bottomLeft = hiddenPoint;
-			} else {
-				this.isDenaturated = true;
-			}
+		if (!isDenaturated) {
+			polyOut.fromArray(getTopLeft(), getTopRight(), getBottomRight(), getBottomLeft());
 		}
-
-		polyOut.fromList(poly);
-
 		return polyOut;
 	}
 
 	/**
-	 * 0 2 6 8 <= x 0 . . | . . | y of the smaller y, x of the larger y 2 . | .
-	 * ------+----- 4 . | . | y of the bigger y, x of the smaller y 6 . . | . .
-	 *
-	 * ^ y
-	 * 
-	 * @param points
-	 * @param dir
-	 * @return
+	 * Prints the corners, with -Dverbose=true only.
 	 */
-	private Point findHiddenPoint(List<Point> points, PolyDirection dir) {
-		double x, y;
-
-		// if you are in the top left corner or the top right corner you
-		// want the x of the low point and the y of the high point.
-		if ((dir == PolyDirection.TOP_LEFT) || (dir == PolyDirection.TOP_RIGHT)) {
-			if (points.get(0).y > points.get(1).y) { // 0 has larger y
-				x = points.get(0).x;
-				y = points.get(1).y;
-			} else { // 1 has larger y
-				x = points.get(1).x;
-				y = points.get(0).y;
-			}
-		} else {
-			if (points.get(0).y > points.get(1).y) { // 0 has larger y
-				x = points.get(1).x;
-				y = points.get(0).y;
-			} else { // 1 has larger y
-				x = points.get(0).x;
-				y = points.get(1).y;
-			}
-		}
-
-		return new Point(x, y);
-	}
-
 	public void printPoly() {
-		for (int vertCnt = 0; vertCnt < poly.rows(); vertCnt++) {
-			Point point = new Point(poly.get(vertCnt, 0));
-			System.out.println("Debug: Point : x = " + point.x + ", y = " + point.y);
+		if (!VisionPipeline.VERBOSE || slot < 0) {
+			return;
+		}
+		for (int corner = QuadBuffer.TOP_LEFT; corner <= QuadBuffer.BOTTOM_LEFT; corner++) {
+			System.out.println("Debug: Point : x = " + buffer.getX(slot, corner) + ", y = "
+					+ buffer.getY(slot, corner));
 		}
 	}
 
+	/**
+	 * Prints the corners by name, with -Dverbose=true only.
+	 */
 	public void printOrientedCorners() {
+		if (!VisionPipeline.VERBOSE || slot < 0) {
+			return;
+		}
 		System.out.println("Debug: topLeft : x = " + getTopLeft().x + ", y = " + getTopLeft().y);
 		System.out.println("Debug: topRight : x = " + getTopRight().x + ", y = " + getTopRight().y);
 		System.out.println("Debug: bottomRight : x = " + getBottomRight().x + ", y = " + getBottomRight().y);
 		System.out.println("Debug: bottomLeft : x = " + getBottomLeft().x + ", y = " + getBottomLeft().y);
 	}
 
+	private Point getCorner(int corner) {
+		if (slot < 0) {
+			return null;
+		}
+		return new Point(buffer.getX(slot, corner), buffer.getY(slot, corner));
+	}
+
+	private void setCorner(int corner, Point point) {
+		if (slot < 0) {
+			slot = buffer.allocate();
+		}
+		buffer.setCorner(slot, corner, point.x, point.y);
+	}
+
 	public Point getTopLeft() {
-		return topLeft;
+		return getCorner(QuadBuffer.TOP_LEFT);
 	}
-	
+
 	public void setTopLeft(Point point) {
-		this.topLeft = point;
-		vertices[0] = point;
+		setCorner(QuadBuffer.TOP_LEFT, point);
 	}
 
 	public Point getTopRight() {
-		return topRight;
+		return getCorner(QuadBuffer.TOP_RIGHT);
 	}
-	
+
 	public void setTopRight(Point point) {
-		this.topRight = point;
-		vertices[1] = point;
+		setCorner(QuadBuffer.TOP_RIGHT, point);
 	}
 
 	public Point getBottomRight() {
-		return bottomRight;
+		return getCorner(QuadBuffer.BOTTOM_RIGHT);
 	}
-	
+
 	public void setBottomRight(Point point) {
-		this.bottomRight = point;
-		vertices[2] = point;
+		setCorner(QuadBuffer.BOTTOM_RIGHT, point);
 	}
 
 	public Point getBottomLeft() {
-		return bottomLeft;
+		return getCorner(QuadBuffer.BOTTOM_LEFT);
 	}
-	
+
 	public void setBottomLeft(Point point) {
-		this.bottomLeft = point;
-		vertices[3] = point;
+		setCorner(QuadBuffer.BOTTOM_LEFT, point);
 	}
 
+	/**
+	 * @return the center of the bounding box, or null if the polygon is
+	 *         denaturated
+	 */
 	public Point getCenter() {
-		return new Point(boundingRect.x + boundingRect.width / 2, boundingRect.y + boundingRect.height / 2);
+		if (slot < 0) {
+			return null;
+		}
+		return new Point(buffer.getCenterX(slot), buffer.getCenterY(slot));
 	}
-	
+
+	/**
+	 * @return whether the centers of two quads are close enough in x to be
+	 *         parts of one strip, with the tolerance of the first one's
+	 *         buffer; false if either is denaturated
+	 */
 	static public boolean lineUp(Quadrilateral q1, Quadrilateral q2) {
-		if (Math.abs(q1.getCenter().x - q2.getCenter().x) < 5) {
-			return true;
-		} else {
+		if (q1.slot < 0 || q2.slot < 0) {
 			return false;
 		}
+		return Math.abs(q1.buffer.getCenterX(q1.slot) - q2.buffer.getCenterX(q2.slot)) < q1.buffer.getLineUpTolerance();
 	}
-	
+
+	/**
+	 * Merges two quads of the same buffer into a new quad in that buffer,
+	 * otherwise into a quad of its own.
+	 */
 	static public Quadrilateral merge(Quadrilateral q1, Quadrilateral q2) {
-		Quadrilateral newQuad = new Quadrilateral();
-		if (q1.getCenter().y > q2.getCenter().y) {
-			newQuad.setBottomLeft(q1.getBottomLeft());
-			newQuad.setBottomRight(q1.getBottomRight());
-			newQuad.setTopLeft(q2.getTopLeft());
-			newQuad.setTopRight(q2.getTopRight());
-		} else {
-			newQuad.setBottomLeft(q2.getBottomLeft());
-			newQuad.setBottomRight(q2.getBottomRight());
-			newQuad.setTopLeft(q1.getTopLeft());
-			newQuad.setTopRight(q1.getTopRight());			
+		if (q1.buffer == q2.buffer) {
+			return new Quadrilateral(q1.buffer, q1.buffer.merge(q1.slot, q2.slot));
 		}
+		Quadrilateral lower = q1.getCenter().y > q2.getCenter().y ? q1 : q2;
+		Quadrilateral upper = lower == q1 ? q2 : q1;
+		Quadrilateral newQuad = new Quadrilateral();
+		newQuad.setBottomLeft(lower.getBottomLeft());
+		newQuad.setBottomRight(lower.getBottomRight());
+		newQuad.setTopLeft(upper.getTopLeft());
+		newQuad.setTopRight(upper.getTopRight());
 		newQuad.setPoly();
 		return newQuad;
 	}
-	
+
+	/**
+	 * Updates the bounding box after the corners were set.
+	 */
 	public void setPoly() {
-		List<Point> polyArr = new ArrayList<Point>();
-		polyArr.add(bottomLeft);
-		polyArr.add(bottomRight);
-		polyArr.add(topLeft);
-		polyArr.add(topRight);
-		poly.fromList(polyArr);
-		setBoundingRect();
+		buffer.updateBounds(slot);
 	}
 }
@@ -1,7 +1,9 @@
 package org.team1635.vision;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.opencv.core.*;
 import org.opencv.imgproc.*;
@@ -12,11 +14,106 @@ import org.opencv.imgproc.*;
  * <p>
  * An OpenCV pipeline generated by GRIP.
  *
+ * <p>
+ * A pipeline is meant to be created once and fed every frame. All the Mats it
+ * works with are kept between frames, so after the first few frames
+ * {@link #process(Mat)} no longer allocates native memory. The outputs handed
+ * out by the getters are only valid until the next call to process. Call
+ * {@link #close()} to release the native memory when done with it.
+ *
  * @author GRIP
  */
-public class VisionPipeline {
+public class VisionPipeline implements AutoCloseable {
+	// How many contours we expect to survive the filter in a normal frame.
+	// The arenas grow past this if needed.
+	private static final int EXPECTED_CANDIDATES = 8;
+
+	/**
+	 * Whether to print what is skipped and why, with -Dverbose=true. Off by
+	 * default, since it builds strings and writes to stdout on every frame.
+	 */
+	static final boolean VERBOSE = "true".equals(System.getProperty("verbose", "false"));
+
+	/**
+	 * The frame width the config is tuned for and the outputs are given in.
+	 * The size thresholds of the filter are scaled to the width of each
+	 * frame, and the distance and error are scaled back to this width, so
+	 * the pipeline behaves the same at any resolution.
+	 */
+	public static final double REFERENCE_WIDTH = 320;
+	// The strips are 2 inches wide and 5 tall
+	private static final double STRIP_HEIGHT_OVER_WIDTH = 2.5;
+
+	/**
+	 * How far, in pixels, the polygons approxPolys gives may stray from the
+	 * hulls.
+	 */
+	static final double APPROX_EPSILON = 4;
+
+	/**
+	 * Frames with at least this many contours have them filtered on all
+	 * cores, unless set otherwise with
+	 * {@link #setParallelContourThreshold(int)}.
+	 */
+	public static final int DEFAULT_PARALLEL_CONTOURS = 128;
+
+	/**
+	 * How the frame is thresholded.
+	 */
+	public enum ThresholdMode {
+		/** Convert to HSV with cvtColor, then inRange. The reference. */
+		HSV,
+		/** One lookup per pixel in a table built from the HSV ranges. */
+		LUT
+	}
+
 	// Inputs
+	private final AtomicReference<PipelineConfig> config = new AtomicReference<PipelineConfig>(
+			PipelineConfig.DEFAULTS);
+	// The config the fields below were last set from
+	private PipelineConfig appliedConfig;
 	protected double[][] filter;
+	private final Scalar minFilterVals = new Scalar(0, 0, 0);
+	private final Scalar maxFilterVals = new Scalar(0, 0, 0);
+	private ThresholdMode thresholdMode = ThresholdMode.LUT;
+	private ColorThresholdLut thresholdLut;
+	private boolean thresholdLutStale = true;
+	// Width of the frames being processed, and it over REFERENCE_WIDTH
+	private int frameWidth = (int) REFERENCE_WIDTH;
+	private double frameScale = 1;
+	private int frameHeight;
+	// Turns strip corners into inches and degrees, for the frame size
+	private CameraModel cameraModel = CameraModel.DEFAULT;
+	private CameraModel.Tables cameraTables;
+	private boolean undistort = false;
+	// Corners of the left and right strip, undistorted if asked to be
+	private final double[] targetCorners = new double[16];
+
+	// Working memory, reused across frames
+	private final Mat hsvMat = new Mat();
+	private final Mat findContoursInput = new Mat();
+	private final Mat hierarchy = new Mat();
+	// Connected components of the mask, for the pre-filter
+	private boolean componentPrefilter = true;
+	private final Mat componentLabels = new Mat();
+	private final Mat componentStats = new Mat();
+	private final Mat componentCentroids = new Mat();
+	private int[] componentStatsBuffer = new int[0];
+	private final Scalar componentLabel = new Scalar(0);
+	private final Scalar black = new Scalar(0);
+	private final ContourGeometry geometry = new ContourGeometry();
+	private final MatOfPoint2f contour2f = new MatOfPoint2f();
+	private final MatArena<MatOfPoint> hullArena = new MatArena<MatOfPoint>(MatOfPoint::new, EXPECTED_CANDIDATES);
+	private final MatArena<MatOfPoint2f> polyArena = new MatArena<MatOfPoint2f>(MatOfPoint2f::new,
+			EXPECTED_CANDIDATES);
+	private final Point contoursOffset = new Point(0, 0);
+	private final ArrayList<MatOfPoint> regionContours = new ArrayList<MatOfPoint>();
+	// The hulls the filter computed for the contours it kept, for convexHulls
+	private final ArrayList<MatOfPoint> filteredHulls = new ArrayList<MatOfPoint>();
+	private List<MatOfPoint> filteredHullsOwner;
+	// Filters cluttered frames on all cores, made when first needed
+	private ParallelContours parallelContours;
+	private int parallelContourThreshold = DEFAULT_PARALLEL_CONTOURS;
 
 	// Outputs
 	protected Mat hsvThresholdOutput = new Mat();
@@ -24,21 +121,335 @@ public class VisionPipeline {
 	private ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
 	private ArrayList<MatOfPoint> convexHullsOutput = new ArrayList<MatOfPoint>();
 	protected ArrayList<MatOfPoint2f> aproxPolysOutput = new ArrayList<MatOfPoint2f>();
-	protected List<Quadrilateral> quads = new ArrayList<Quadrilateral>();
+	protected QuadBuffer quads = new QuadBuffer();
 
 	private int angle;
-	private Quadrilateral leftStrip;
-	private Quadrilateral rightStrip;
+	private double distanceInches;
+	private double yawDegrees;
+	// Slots in quads, -1 if none
+	private int leftStrip = -1;
+	private int rightStrip = -1;
 	private boolean targetAcquired = false;
 
+	// Tracking: search only around where the target was in the last frame
+	private static final double TRACKING_MARGIN = 1.0; // target sizes
+	private static final int TRACKING_MIN_MARGIN = 16; // reference pixels
+	private static final int TRACKING_FULL_SEARCH_INTERVAL = 30; // frames
+	private boolean trackingEnabled = false;
+	private final Rect trackingRoi = new Rect();
+	private int trackedStrips = 0;
+	private int framesSinceFullSearch = 0;
+	private boolean lastFrameTracked = false;
+
+	// Pyramid: find candidates on a smaller frame, refine them at full size
+	private static final int PYRAMID_MAX_CANDIDATES = 16;
+	private static final double PYRAMID_PERIMETER_SLACK = 0.5;
+	private static final int PYRAMID_MARGIN = 2; // pixels of the small frame
+
+	// A quad this tall is a strip whatever its shape, and a strip may be this
+	// much wider than 2/5 of its height, in reference pixels
+	private static final double STRIP_TALL_ENOUGH = 40;
+	private static final double STRIP_WIDTH_SLACK = 5;
+	private int pyramidLevels = 0;
+	private final Mat pyramidFrame = new Mat();
+	private final Size pyramidSize = new Size();
+	private final Rect[] pyramidCandidates = new Rect[PYRAMID_MAX_CANDIDATES];
+	private int pyramidCandidateCount = 0;
+
+	// Instrumentation, only when stats are enabled
+	private PipelineStats stats;
+	private final long[] stepNanos = new long[PipelineStats.Step.values().length];
+	private final int[] stepCounts = new int[PipelineStats.Count.values().length];
+	private long stepStart;
+
+	// Filter_Contours0 settings, set from the config
+	private double filterContoursMinArea;
+	private double filterContoursMinPerimeter;
+	private double filterContoursMinWidth;
+	private double filterContoursMaxWidth;
+	private double filterContoursMinHeight;
+	private double filterContoursMaxHeight;
+	private final double[] filterContoursSolidity = new double[2];
+	private double filterContoursMaxVertices;
+	private double filterContoursMinVertices;
+	private double filterContoursMinRatio;
+	private double filterContoursMaxRatio;
+
 	public VisionPipeline() {
 		filter = new double[3][2];
+		for (int i = 0; i < pyramidCandidates.length; i++) {
+			pyramidCandidates[i] = new Rect();
+		}
+		applyConfig();
 	}
 
+	/**
+	 * Changes the HSV ranges, keeping the rest of the config.
+	 */
 	public void setFilter(double[] hueRange, double[] satRange, double[] valRange) {
-		this.filter[0] = hueRange;
-		this.filter[1] = satRange;
-		this.filter[2] = valRange;
+		config.updateAndGet(current -> current.withHsv(hueRange, satRange, valRange));
+	}
+
+	/**
+	 * Swaps in a new config. Can be called from any thread; it takes effect
+	 * from the next frame.
+	 */
+	public void setConfig(PipelineConfig newConfig) {
+		config.set(newConfig);
+	}
+
+	public PipelineConfig getConfig() {
+		return config.get();
+	}
+
+	/**
+	 * Copies the current config into the fields the steps use, if it changed
+	 * since the last frame.
+	 */
+	private void applyConfig() {
+		PipelineConfig current = config.get();
+		if (current == appliedConfig) {
+			return;
+		}
+		if (appliedConfig == null || !current.sameThreshold(appliedConfig)) {
+			filter[0][0] = current.get(PipelineConfig.Param.HUE_MIN);
+			filter[0][1] = current.get(PipelineConfig.Param.HUE_MAX);
+			filter[1][0] = current.get(PipelineConfig.Param.SAT_MIN);
+			filter[1][1] = current.get(PipelineConfig.Param.SAT_MAX);
+			filter[2][0] = current.get(PipelineConfig.Param.VAL_MIN);
+			filter[2][1] = current.get(PipelineConfig.Param.VAL_MAX);
+			for (int i = 0; i < 3; i++) {
+				minFilterVals.val[i] = filter[i][0];
+				maxFilterVals.val[i] = filter[i][1];
+			}
+			thresholdLutStale = true;
+		}
+		scaleFilterSizes(current);
+		filterContoursSolidity[0] = current.get(PipelineConfig.Param.MIN_SOLIDITY);
+		filterContoursSolidity[1] = current.get(PipelineConfig.Param.MAX_SOLIDITY);
+		filterContoursMaxVertices = current.get(PipelineConfig.Param.MAX_VERTICES);
+		filterContoursMinVertices = current.get(PipelineConfig.Param.MIN_VERTICES);
+		filterContoursMinRatio = current.get(PipelineConfig.Param.MIN_RATIO);
+		filterContoursMaxRatio = current.get(PipelineConfig.Param.MAX_RATIO);
+		appliedConfig = current;
+	}
+
+	/**
+	 * Sets the size thresholds of the filter, given for a frame
+	 * {@link #REFERENCE_WIDTH} wide, for the width of the frames being
+	 * processed.
+	 *
+	 * <p>
+	 * The maximums scale with the frame, so a near target passes at any
+	 * resolution. The minimums only scale down: they are the fewest pixels a
+	 * blob needs to not be noise, so in a frame wider than the reference they
+	 * stay put, and targets smaller in reference pixels, that is further
+	 * away, get through. That is what switching a camera up is for.
+	 */
+	private void scaleFilterSizes(PipelineConfig current) {
+		double minScale = Math.min(frameScale, 1);
+		filterContoursMinArea = current.get(PipelineConfig.Param.MIN_AREA) * minScale * minScale;
+		filterContoursMinPerimeter = current.get(PipelineConfig.Param.MIN_PERIMETER) * minScale;
+		filterContoursMinWidth = current.get(PipelineConfig.Param.MIN_WIDTH) * minScale;
+		filterContoursMaxWidth = current.get(PipelineConfig.Param.MAX_WIDTH) * frameScale;
+		filterContoursMinHeight = current.get(PipelineConfig.Param.MIN_HEIGHT) * minScale;
+		filterContoursMaxHeight = current.get(PipelineConfig.Param.MAX_HEIGHT) * frameScale;
+	}
+
+	/**
+	 * Rescales everything given in pixels when the frames change size, for
+	 * example when the camera switches modes. What was tracked in the old
+	 * frames is forgotten.
+	 */
+	private void setFrameWidth(int width) {
+		frameWidth = width;
+		frameScale = width / REFERENCE_WIDTH;
+		quads.setFrameScale(frameScale);
+		trackedStrips = 0;
+		if (appliedConfig != null) {
+			scaleFilterSizes(appliedConfig);
+		}
+	}
+
+	/**
+	 * @return the width of the last frame processed
+	 */
+	public int getFrameWidth() {
+		return frameWidth;
+	}
+
+	/**
+	 * Selects how frames are thresholded. The lookup table is rebuilt on the
+	 * next frame after the filter changes, which takes a few frames worth of
+	 * time.
+	 *
+	 * @param mode
+	 *            the threshold mode
+	 * @param quantization
+	 *            for {@link ThresholdMode#LUT}, how many low bits of each
+	 *            color channel the table ignores. 0 gives exactly the same
+	 *            mask as {@link ThresholdMode#HSV}.
+	 */
+	public void setThresholdMode(ThresholdMode mode, int quantization) {
+		this.thresholdMode = mode;
+		if (mode == ThresholdMode.LUT
+				&& (thresholdLut == null || thresholdLut.getQuantization() != quantization)) {
+			thresholdLut = new ColorThresholdLut(quantization);
+			thresholdLutStale = true;
+		}
+	}
+
+	public ThresholdMode getThresholdMode() {
+		return thresholdMode;
+	}
+
+	/**
+	 * Thresholds a frame both ways and compares the masks.
+	 *
+	 * @return the number of pixels where the lookup table and the HSV
+	 *         reference disagree
+	 */
+	public int compareThresholdModes(Mat source) {
+		Mat reference = new Mat();
+		Mat lut = new Mat();
+		ThresholdMode mode = thresholdMode;
+		applyConfig();
+		try {
+			thresholdMode = ThresholdMode.HSV;
+			hsvThreshold(source, filter, reference);
+			thresholdMode = ThresholdMode.LUT;
+			hsvThreshold(source, filter, lut);
+			Core.bitwise_xor(reference, lut, lut);
+			return Core.countNonZero(lut);
+		} finally {
+			thresholdMode = mode;
+			reference.release();
+			lut.release();
+		}
+	}
+
+	/**
+	 * Turns tracking mode on or off. When tracking, a frame that follows a
+	 * frame where the target was found is only searched in a region around
+	 * where the target was. If the target is not found there, or is cut by the
+	 * edge of the region, the whole frame is searched again. The whole frame
+	 * is also searched every {@value #TRACKING_FULL_SEARCH_INTERVAL} frames in
+	 * case a better candidate showed up elsewhere.
+	 */
+	public void setTracking(boolean enabled) {
+		this.trackingEnabled = enabled;
+		this.trackedStrips = 0;
+	}
+
+	public boolean isTracking() {
+		return trackingEnabled;
+	}
+
+	/**
+	 * Turns pyramid detection on or off. With pyramid levels, a full frame
+	 * search first thresholds and finds contours on the frame scaled down by 2
+	 * to the power of levels. Only the regions around the contours that could
+	 * be a strip are then searched again at full size, so the outputs keep
+	 * full resolution accuracy.
+	 *
+	 * @param levels
+	 *            0 to search the full size frame directly, 1 to scale it down
+	 *            by 2, 2 to scale it down by 4
+	 */
+	public void setPyramidLevels(int levels) {
+		if (levels < 0 || levels > 3) {
+			throw new IllegalArgumentException("Pyramid levels must be between 0 and 3");
+		}
+		this.pyramidLevels = levels;
+	}
+
+	public int getPyramidLevels() {
+		return pyramidLevels;
+	}
+
+	/**
+	 * Turns the connected components pre-filter on or off. When on, the
+	 * mask is labeled and only the components that could pass the filter are
+	 * traced, see {@link #traceComponents}. When off, the whole mask is
+	 * copied and traced, as GRIP does.
+	 */
+	public void setComponentPrefilter(boolean enabled) {
+		this.componentPrefilter = enabled;
+	}
+
+	public boolean isComponentPrefilter() {
+		return componentPrefilter;
+	}
+
+	/**
+	 * Sets how many contours a frame needs before the steps from
+	 * Filter_Contours0 to Approximate_Polys split them across the cores. The
+	 * outputs are the same either way; below the threshold forking costs more
+	 * than it saves.
+	 *
+	 * @param contours
+	 *            the threshold, or 0 to always run the steps on one core
+	 */
+	public void setParallelContourThreshold(int contours) {
+		if (contours < 0) {
+			throw new IllegalArgumentException("The parallel contour threshold can not be negative");
+		}
+		this.parallelContourThreshold = contours;
+	}
+
+	public int getParallelContourThreshold() {
+		return parallelContourThreshold;
+	}
+
+	/**
+	 * Turns the per step latency histograms and contour counts on or off.
+	 * When off, process does not even read the clock.
+	 */
+	public void setStatsEnabled(boolean enabled) {
+		stats = enabled ? new PipelineStats() : null;
+	}
+
+	/**
+	 * @return the stats, or null when they are not enabled
+	 */
+	public PipelineStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Sets the camera model the distance in inches and the yaw are worked
+	 * out with. Its tables are built on the next frame.
+	 */
+	public void setCameraModel(CameraModel model) {
+		this.cameraModel = model;
+		this.cameraTables = null;
+	}
+
+	public CameraModel getCameraModel() {
+		return cameraModel;
+	}
+
+	/**
+	 * Turns lens undistortion on or off. When on, the corners of the strips
+	 * are corrected through the camera model's grid before the distance and
+	 * yaw are worked out from them. The frame itself is never undistorted,
+	 * and the pixel outputs, tracking and stream overlay stay in frame
+	 * pixels.
+	 */
+	public void setUndistort(boolean enabled) {
+		this.undistort = enabled;
+	}
+
+	public boolean isUndistort() {
+		return undistort;
+	}
+
+	/**
+	 * @return true if the last frame was only searched around the previous
+	 *         target
+	 */
+	public boolean wasLastFrameTracked() {
+		return lastFrameTracked;
 	}
 
 	/**
@@ -46,52 +457,358 @@ public class VisionPipeline {
 	 * outputs.
 	 */
 	public void process(Mat source0) {
+		if (source0.cols() != frameWidth) {
+			setFrameWidth(source0.cols());
+		}
+		frameHeight = source0.rows();
+		applyConfig();
+		long processStart = 0;
+		if (stats != null) {
+			Arrays.fill(stepNanos, 0);
+			processStart = System.nanoTime();
+		}
+		lastFrameTracked = false;
+		if (trackingEnabled && trackedStrips > 0 && framesSinceFullSearch < TRACKING_FULL_SEARCH_INTERVAL
+				&& setTrackingRoi(source0)) {
+			int expectedStrips = trackedStrips;
+			Mat roi = source0.submat(trackingRoi);
+			try {
+				processRegion(roi, trackingRoi.x, trackingRoi.y);
+			} finally {
+				roi.release();
+			}
+			lastFrameTracked = targetAcquired && countStrips() == expectedStrips && !touchesRoiEdge(source0);
+		}
+
+		if (lastFrameTracked) {
+			framesSinceFullSearch++;
+		} else if (pyramidLevels > 0) {
+			processPyramid(source0);
+			framesSinceFullSearch = 0;
+		} else {
+			processRegion(source0, 0, 0);
+			framesSinceFullSearch = 0;
+		}
+		trackedStrips = targetAcquired ? countStrips() : 0;
+		measureTarget();
+
+		if (stats != null) {
+			stepNanos[PipelineStats.Step.TOTAL.ordinal()] = System.nanoTime() - processStart;
+			recordStats();
+		}
+	}
+
+	private void startStep() {
+		if (stats != null) {
+			stepStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Adds the time since the last startStep or endStep to a step. A step can
+	 * run more than once per frame when the frame is searched by region.
+	 */
+	private void endStep(PipelineStats.Step step) {
+		if (stats != null) {
+			long now = System.nanoTime();
+			stepNanos[step.ordinal()] += now - stepStart;
+			stepStart = now;
+		}
+	}
+
+	private void recordStats() {
+		int quadCandidates = 0;
+		for (int i = 0; i < aproxPolysOutput.size(); i++) {
+			int vertices = aproxPolysOutput.get(i).rows();
+			if (vertices == 4 || vertices == 5) {
+				quadCandidates++;
+			}
+		}
+		stepCounts[PipelineStats.Count.CONTOURS.ordinal()] = findContoursOutput.size();
+		stepCounts[PipelineStats.Count.FILTERED.ordinal()] = filterContoursOutput.size();
+		stepCounts[PipelineStats.Count.QUAD_CANDIDATES.ordinal()] = quadCandidates;
+		stepCounts[PipelineStats.Count.STRIPS.ordinal()] = countStrips();
+		stats.record(stepNanos, stepCounts);
+	}
+
+	/**
+	 * Runs the pipeline on a region of the frame.
+	 *
+	 * @param source0
+	 *            the region to search
+	 * @param x
+	 *            left of the region in the frame
+	 * @param y
+	 *            top of the region in the frame
+	 */
+	private void processRegion(Mat source0, int x, int y) {
+		beginFrame();
+		extractContours(source0, x, y, 1);
+		processContours();
+	}
+
+	/**
+	 * Runs the pipeline on a scaled down frame to find where strips might be,
+	 * then on those places of the full size frame.
+	 */
+	private void processPyramid(Mat source0) {
+		beginFrame();
+		int scale = 1 << pyramidLevels;
+		pyramidSize.width = Math.max(1, source0.cols() / scale);
+		pyramidSize.height = Math.max(1, source0.rows() / scale);
+		// Nearest keeps the colors as they are, so the same threshold applies
+		Imgproc.resize(source0, pyramidFrame, pyramidSize, 0, 0, Imgproc.INTER_NEAREST);
+		extractContours(pyramidFrame, 0, 0, scale);
+		boolean refine = findPyramidCandidates(findContoursOutput, scale, source0);
+		releaseContours(findContoursOutput);
+
+		if (refine) {
+			for (int i = 0; i < pyramidCandidateCount; i++) {
+				Rect candidate = pyramidCandidates[i];
+				Mat roi = source0.submat(candidate);
+				try {
+					extractContours(roi, candidate.x, candidate.y, 1);
+				} finally {
+					roi.release();
+				}
+			}
+		} else {
+			// Too cluttered to be worth refining region by region
+			extractContours(source0, 0, 0, 1);
+		}
+		processContours();
+	}
+
+	/**
+	 * Collects the regions of the full size frame around the contours of the
+	 * small frame that are not too small to be a strip. Overlapping regions
+	 * are merged.
+	 *
+	 * @return false if there are too many regions
+	 */
+	private boolean findPyramidCandidates(List<MatOfPoint> contours, int scale, Mat frame) {
+		double minPerimeter = filterContoursMinPerimeter / scale * PYRAMID_PERIMETER_SLACK;
+		pyramidCandidateCount = 0;
+		for (int i = 0; i < contours.size(); i++) {
+			geometry.load(contours.get(i));
+			if (geometry.getPerimeter() < minPerimeter)
+				continue;
+			if (pyramidCandidateCount == pyramidCandidates.length) {
+				return false;
+			}
+			int bbX = geometry.getX();
+			int bbY = geometry.getY();
+			int x0 = Math.max(0, (bbX - PYRAMID_MARGIN) * scale);
+			int y0 = Math.max(0, (bbY - PYRAMID_MARGIN) * scale);
+			int x1 = Math.min(frame.cols(), (bbX + geometry.getWidth() + PYRAMID_MARGIN) * scale);
+			int y1 = Math.min(frame.rows(), (bbY + geometry.getHeight() + PYRAMID_MARGIN) * scale);
+			Rect candidate = pyramidCandidates[pyramidCandidateCount++];
+			candidate.x = x0;
+			candidate.y = y0;
+			candidate.width = x1 - x0;
+			candidate.height = y1 - y0;
+		}
+		mergePyramidCandidates();
+		return true;
+	}
+
+	private void mergePyramidCandidates() {
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < pyramidCandidateCount && !merged; i++) {
+				for (int j = i + 1; j < pyramidCandidateCount && !merged; j++) {
+					Rect a = pyramidCandidates[i];
+					Rect b = pyramidCandidates[j];
+					if (a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+						int x1 = Math.max(a.x + a.width, b.x + b.width);
+						int y1 = Math.max(a.y + a.height, b.y + b.height);
+						a.x = Math.min(a.x, b.x);
+						a.y = Math.min(a.y, b.y);
+						a.width = x1 - a.x;
+						a.height = y1 - a.y;
+						// Move the last candidate into the slot of the merged one
+						pyramidCandidates[j] = pyramidCandidates[pyramidCandidateCount - 1];
+						pyramidCandidates[pyramidCandidateCount - 1] = b;
+						pyramidCandidateCount--;
+						merged = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the previous frame's Mats back to the arenas and OpenCV. The
+	 * stages can be run on their own after this, which the benchmarks do.
+	 */
+	void beginFrame() {
+		hullArena.reset();
+		polyArena.reset();
+		if (parallelContours != null) {
+			parallelContours.reset();
+		}
+		releaseContours(findContoursOutput);
+	}
+
+	/**
+	 * Thresholds a region of the frame and adds its contours, in frame
+	 * coordinates, to the contours found so far this frame.
+	 *
+	 * @param scale
+	 *            how many times smaller than the frame the region is, more
+	 *            than 1 for the small pyramid frame
+	 */
+	private void extractContours(Mat source0, int x, int y, int scale) {
+		contoursOffset.x = x;
+		contoursOffset.y = y;
+
 		// Step HSV_Threshold0:
 		Mat hsvThresholdInput = source0;
 
+		startStep();
 		hsvThreshold(hsvThresholdInput, filter, hsvThresholdOutput);
+		endStep(PipelineStats.Step.THRESHOLD);
 
 		// Step Find_Contours0:
-		// Mat findContoursInput = hsvThresholdOutput;
-		Mat findContoursInput = hsvThresholdOutput.clone();
-		boolean findContoursExternalOnly = false;
-		findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		if (componentPrefilter) {
+			traceComponents(hsvThresholdOutput, scale, findContoursOutput);
+		} else {
+			// findContours modifies its input, so work on a copy
+			hsvThresholdOutput.copyTo(findContoursInput);
+			boolean findContoursExternalOnly = false;
+			findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		}
+		endStep(PipelineStats.Step.FIND_CONTOURS);
+	}
+
+	/**
+	 * Runs the steps after Find_Contours0 on the contours found this frame.
+	 */
+	private void processContours() {
+		if (parallelContourThreshold > 0 && findContoursOutput.size() >= parallelContourThreshold
+				&& VisionWorkers.parallelism() > 1) {
+			processContoursInParallel();
+			return;
+		}
 
 		// Step Filter_Contours0:
 		ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
-		double filterContoursMinArea = 0.0;
-		// double filterContoursMinPerimeter = 75.0; //didn't work from afar
-		// double filterContoursMinPerimeter = 60.0; //doesn't pick up target
-		// from 83 inches away.
-		double filterContoursMinPerimeter = 50.0; // doesn't pick up target from
-													// 83 inches away.
-		double filterContoursMinWidth = 0.0;
-		double filterContoursMaxWidth = 1000.0;
-		double filterContoursMinHeight = 0.0;
-		double filterContoursMaxHeight = 1000.0;
-		double[] filterContoursSolidity = { 75.53956834532374, 100 };
-		double filterContoursMaxVertices = 1000000.0;
-		double filterContoursMinVertices = 0.0;
-		double filterContoursMinRatio = 0.0;
-		double filterContoursMaxRatio = 1000.0;
+		startStep();
 		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter,
 				filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight,
 				filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio,
 				filterContoursMaxRatio, filterContoursOutput);
+		endStep(PipelineStats.Step.FILTER_CONTOURS);
 
 		// Step Convex_Hulls0:
 		ArrayList<MatOfPoint> convexHullsContours = filterContoursOutput;
 		convexHulls(convexHullsContours, convexHullsOutput);
+		endStep(PipelineStats.Step.CONVEX_HULLS);
 
 		// Step Approximate_Polys
 		approxPolys(convexHullsOutput, aproxPolysOutput);
+		endStep(PipelineStats.Step.APPROX_POLYS);
+
+		// find the retro-reflective strips
+		findStrips(aproxPolysOutput);
+		endStep(PipelineStats.Step.FIND_STRIPS);
+	}
+
+	/**
+	 * Runs Filter_Contours0, Convex_Hulls0 and Approximate_Polys together on
+	 * all cores, then finds the strips. The stats time the three steps as one,
+	 * under Filter_Contours0.
+	 */
+	private void processContoursInParallel() {
+		if (parallelContours == null) {
+			parallelContours = new ParallelContours(this);
+		}
+		startStep();
+		filteredHulls.clear();
+		filteredHullsOwner = null;
+		parallelContours.process(findContoursOutput, filterContoursOutput, convexHullsOutput, aproxPolysOutput);
+		endStep(PipelineStats.Step.FILTER_CONTOURS);
 
 		// find the retro-reflective strips
 		findStrips(aproxPolysOutput);
+		endStep(PipelineStats.Step.FIND_STRIPS);
+	}
+
+	/**
+	 * The contours found by findContours were allocated by the OpenCV
+	 * bindings, give their native memory back now instead of at the next GC.
+	 */
+	static void releaseContours(List<MatOfPoint> contours) {
+		for (int i = 0; i < contours.size(); i++) {
+			contours.get(i).release();
+		}
+		contours.clear();
+	}
+
+	private int countStrips() {
+		return (leftStrip < 0 ? 0 : 1) + (rightStrip < 0 ? 0 : 1);
+	}
+
+	/**
+	 * Sets the tracking region to the strips of the last frame, grown by a
+	 * margin, and clipped to the frame.
+	 *
+	 * @return false if there is nothing left to search
+	 */
+	private boolean setTrackingRoi(Mat frame) {
+		int x0 = quads.getBoundsX(leftStrip);
+		int y0 = quads.getBoundsY(leftStrip);
+		int x1 = x0 + quads.getWidth(leftStrip);
+		int y1 = y0 + quads.getHeight(leftStrip);
+		if (rightStrip >= 0) {
+			int rightX = quads.getBoundsX(rightStrip);
+			int rightY = quads.getBoundsY(rightStrip);
+			x0 = Math.min(x0, rightX);
+			y0 = Math.min(y0, rightY);
+			x1 = Math.max(x1, rightX + quads.getWidth(rightStrip));
+			y1 = Math.max(y1, rightY + quads.getHeight(rightStrip));
+		}
+		int minMargin = (int) (TRACKING_MIN_MARGIN * frameScale);
+		int marginX = Math.max(minMargin, (int) ((x1 - x0) * TRACKING_MARGIN));
+		int marginY = Math.max(minMargin, (int) ((y1 - y0) * TRACKING_MARGIN));
+		x0 = Math.max(0, x0 - marginX);
+		y0 = Math.max(0, y0 - marginY);
+		x1 = Math.min(frame.cols(), x1 + marginX);
+		y1 = Math.min(frame.rows(), y1 + marginY);
+		trackingRoi.x = x0;
+		trackingRoi.y = y0;
+		trackingRoi.width = x1 - x0;
+		trackingRoi.height = y1 - y0;
+		return trackingRoi.width > 0 && trackingRoi.height > 0;
+	}
+
+	/**
+	 * @return true if a strip touches a side of the tracking region that is
+	 *         not also a side of the frame, meaning part of it may be outside
+	 *         of what we searched
+	 */
+	private boolean touchesRoiEdge(Mat frame) {
+		return touchesRoiEdge(leftStrip, frame) || touchesRoiEdge(rightStrip, frame);
+	}
+
+	private boolean touchesRoiEdge(int strip, Mat frame) {
+		if (strip < 0) {
+			return false;
+		}
+		int x = quads.getBoundsX(strip);
+		int y = quads.getBoundsY(strip);
+		int roiRight = trackingRoi.x + trackingRoi.width;
+		int roiBottom = trackingRoi.y + trackingRoi.height;
+		return (x <= trackingRoi.x && trackingRoi.x > 0) || (y <= trackingRoi.y && trackingRoi.y > 0)
+				|| (x + quads.getWidth(strip) >= roiRight && roiRight < frame.cols())
+				|| (y + quads.getHeight(strip) >= roiBottom && roiBottom < frame.rows());
 	}
 
 	/**
 	 * This method is a generated getter for the output of a HSV_Threshold.
+	 * When the last frame was tracked or searched with a pyramid it only covers
+	 * the last region searched.
 	 * 
 	 * @return Mat output from HSV_Threshold.
 	 */
@@ -130,6 +847,9 @@ public class VisionPipeline {
 		return aproxPolysOutput;
 	}
 
+	/**
+	 * @return {@link #getYawDegrees()}, rounded
+	 */
 	public int getAngle() {
 		return angle;
 	}
@@ -148,27 +868,31 @@ public class VisionPipeline {
 	 * @param output
 	 *            The image in which to store the output.
 	 */
-	private void hsvThreshold(Mat input, double[][] filter, Mat out) {
-		double[] hueFilterRange = filter[0];
-		double[] satFilterRange = filter[1];
-		double[] valFilterRange = filter[2];
-
-		Scalar minFilterVals = new Scalar(hueFilterRange[0], satFilterRange[0], valFilterRange[0]);
-		Scalar maxFilterVals = new Scalar(hueFilterRange[1], satFilterRange[1], valFilterRange[1]);
+	void hsvThreshold(Mat input, double[][] filter, Mat out) {
+		if (thresholdMode == ThresholdMode.LUT) {
+			if (thresholdLut == null) {
+				thresholdLut = new ColorThresholdLut(0);
+			}
+			if (thresholdLutStale) {
+				thresholdLut.build(minFilterVals, maxFilterVals);
+				thresholdLutStale = false;
+			}
+			thresholdLut.apply(input, out);
+			return;
+		}
 
-		// TODO: there is probably no need for this tmpMat. Was put in due to
-		// get(x, y ...) bug
-		Mat tmpMat = new Mat(new Size(320, 240), CvType.CV_8UC3);
-		Imgproc.cvtColor(input, tmpMat, Imgproc.COLOR_BGR2HSV);
-		// showRanges(tmpMat, areaOfInterest);
-		setRanges(tmpMat);
+		// cvtColor sizes hsvMat to the input the first time and reuses it after
+		Imgproc.cvtColor(input, hsvMat, Imgproc.COLOR_BGR2HSV);
+		// showRanges(hsvMat, areaOfInterest);
+		setRanges(hsvMat);
 
-		Core.inRange(tmpMat, minFilterVals, maxFilterVals, out);
+		Core.inRange(hsvMat, minFilterVals, maxFilterVals, out);
 	}
 
 	/**
 	 * Override this in your debug class to print things from the HSV converted
-	 * image and before we write the greyscale image on top of it
+	 * image and before we write the greyscale image on top of it. Only called
+	 * in {@link ThresholdMode#HSV} mode.
 	 * 
 	 * @param img
 	 *            Image to be scanned for value ranges
@@ -189,9 +913,7 @@ public class VisionPipeline {
 	 * @param output
 	 *            The image in which to store the output.
 	 */
-	private void findContours(Mat input, boolean externalOnly, List<MatOfPoint> contours) {
-		Mat hierarchy = new Mat();
-		contours.clear();
+	void findContours(Mat input, boolean externalOnly, List<MatOfPoint> contours) {
 		int mode;
 		if (externalOnly) {
 			mode = Imgproc.RETR_EXTERNAL;
@@ -199,11 +921,115 @@ public class VisionPipeline {
 			mode = Imgproc.RETR_LIST;
 		}
 		int method = Imgproc.CHAIN_APPROX_SIMPLE;
-		Imgproc.findContours(input, contours, hierarchy, mode, method);
+		// The offset puts the contours of a region back in frame coordinates
+		regionContours.clear();
+		Imgproc.findContours(input, regionContours, hierarchy, mode, method, contoursOffset);
+		// A frame can be searched a region at a time, keep what we found
+		for (int i = 0; i < regionContours.size(); i++) {
+			contours.add(regionContours.get(i));
+		}
 	}
 
 	/**
-	 * Filters out contours that do not meet certain criteria.
+	 * Finds the contours of a mask like findContours with RETR_LIST, but only
+	 * of the connected components that could have a contour that passes
+	 * Filter_Contours0. The components are labeled with their bounding boxes
+	 * and pixel counts in one pass, and each one left is traced on its own,
+	 * in a copy of just its box. The mask is not modified.
+	 *
+	 * <p>
+	 * Every contour of a component, its outline and those of its holes, lies
+	 * in the component's box, so a component narrower, lower, or with a box
+	 * smaller in area than the minimums has no contour that passes. A contour
+	 * steps from pixel to neighboring pixel and passes each pixel at most 4
+	 * times, so it is no longer than 4 &radic;2 times the pixel count. The
+	 * maximum width and height and the ratio are checked on the component's
+	 * box too, which leaves out the holes of components that are too big, as
+	 * RETR_EXTERNAL would.
+	 *
+	 * @param mask
+	 *            the thresholded image
+	 * @param scale
+	 *            more than 1 for the small pyramid frame, for which only the
+	 *            perimeter is checked, against the slack findPyramidCandidates
+	 *            gives it
+	 * @param contours
+	 *            receives the contours, offset by contoursOffset
+	 */
+	void traceComponents(Mat mask, int scale, List<MatOfPoint> contours) {
+		int count = Imgproc.connectedComponentsWithStats(mask, componentLabels, componentStats, componentCentroids, 8,
+				CvType.CV_32S);
+		int columns = componentStats.cols();
+		if (componentStatsBuffer.length < count * columns) {
+			componentStatsBuffer = new int[count * columns * 2];
+		}
+		componentStats.get(0, 0, componentStatsBuffer);
+		double x = contoursOffset.x;
+		double y = contoursOffset.y;
+		// Label 0 is the background
+		for (int label = 1; label < count; label++) {
+			int i = label * columns;
+			int left = componentStatsBuffer[i + Imgproc.CC_STAT_LEFT];
+			int top = componentStatsBuffer[i + Imgproc.CC_STAT_TOP];
+			int width = componentStatsBuffer[i + Imgproc.CC_STAT_WIDTH];
+			int height = componentStatsBuffer[i + Imgproc.CC_STAT_HEIGHT];
+			int pixels = componentStatsBuffer[i + Imgproc.CC_STAT_AREA];
+			if (!componentCouldPass(width, height, pixels, scale))
+				continue;
+			// findContours clears the edge pixels of its input, so leave a
+			// border of background around the component
+			findContoursInput.create(height + 2, width + 2, CvType.CV_8UC1);
+			findContoursInput.setTo(black);
+			Mat labels = componentLabels.submat(top, top + height, left, left + width);
+			Mat inside = findContoursInput.submat(1, height + 1, 1, width + 1);
+			try {
+				componentLabel.val[0] = label;
+				Core.compare(labels, componentLabel, inside, Core.CMP_EQ);
+			} finally {
+				labels.release();
+				inside.release();
+			}
+			contoursOffset.x = x + left - 1;
+			contoursOffset.y = y + top - 1;
+			findContours(findContoursInput, false, contours);
+		}
+		contoursOffset.x = x;
+		contoursOffset.y = y;
+	}
+
+	private boolean componentCouldPass(int width, int height, int pixels, int scale) {
+		double maxPerimeter = pixels * 4 * Math.sqrt(2);
+		if (scale > 1) {
+			return maxPerimeter >= filterContoursMinPerimeter / scale * PYRAMID_PERIMETER_SLACK;
+		}
+		if (maxPerimeter < filterContoursMinPerimeter)
+			return false;
+		// The corners of a contour are pixel centers, so its area is at most
+		// that of the box shrunk by half a pixel on each side
+		if ((width - 1) * (double) (height - 1) < filterContoursMinArea)
+			return false;
+		if (width < filterContoursMinWidth || width > filterContoursMaxWidth)
+			return false;
+		if (height < filterContoursMinHeight || height > filterContoursMaxHeight)
+			return false;
+		final double ratio = width / (double) height;
+		return ratio >= filterContoursMinRatio && ratio <= filterContoursMaxRatio;
+	}
+
+	/**
+	 * Filters out contours that do not meet the criteria of Filter_Contours0.
+	 */
+	void filterContours(List<MatOfPoint> inputContours, List<MatOfPoint> output) {
+		filterContours(inputContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth,
+				filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity,
+				filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio,
+				output);
+	}
+
+	/**
+	 * Filters out contours that do not meet certain criteria. Each contour is
+	 * measured by the ContourGeometry kernel; the hulls of the contours that
+	 * are kept are saved for {@link #convexHulls}.
 	 * 
 	 * @param inputContours
 	 *            is the input list of contours
@@ -235,62 +1061,83 @@ public class VisionPipeline {
 	private void filterContours(List<MatOfPoint> inputContours, double minArea, double minPerimeter, double minWidth,
 			double maxWidth, double minHeight, double maxHeight, double[] solidity, double maxVertexCount,
 			double minVertexCount, double minRatio, double maxRatio, List<MatOfPoint> output) {
-		final MatOfInt hull = new MatOfInt();
 		output.clear();
-		// operation
+		filteredHulls.clear();
+		filteredHullsOwner = output;
+		// operation, cheapest tests first and the hull last
 		for (int i = 0; i < inputContours.size(); i++) {
 			final MatOfPoint contour = inputContours.get(i);
-			final Rect bb = Imgproc.boundingRect(contour);
-			if (bb.width < minWidth || bb.width > maxWidth)
-				continue;
-			if (bb.height < minHeight || bb.height > maxHeight)
-				continue;
-			final double area = Imgproc.contourArea(contour);
-			if (area < minArea)
-				continue;
-			if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter)
-				continue;
-			Imgproc.convexHull(contour, hull);
-			MatOfPoint mopHull = new MatOfPoint();
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int) hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1] };
-				mopHull.put(j, 0, point);
-			}
-			final double solid = 100 * area / Imgproc.contourArea(mopHull);
-			if (solid < solidity[0] || solid > solidity[1])
-				continue;
-			if (contour.rows() < minVertexCount || contour.rows() > maxVertexCount)
-				continue;
-			final double ratio = bb.width / (double) bb.height;
-			if (ratio < minRatio || ratio > maxRatio)
+			geometry.load(contour);
+			if (!passesFilter(geometry, minArea, minPerimeter, minWidth, maxWidth, minHeight, maxHeight, solidity,
+					maxVertexCount, minVertexCount, minRatio, maxRatio))
 				continue;
+			final MatOfPoint mopHull = hullArena.acquire();
+			geometry.getHull(mopHull);
+			filteredHulls.add(mopHull);
 			output.add(contour);
 		}
 	}
 
 	/**
-	 * Compute the convex hulls of contours.
+	 * Whether a contour meets the criteria of Filter_Contours0. Only reads the
+	 * settings, so it can be called from several threads at once, each with
+	 * its own geometry.
+	 *
+	 * @param geometry
+	 *            loaded with the contour
+	 */
+	boolean passesFilter(ContourGeometry geometry) {
+		return passesFilter(geometry, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth,
+				filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity,
+				filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio);
+	}
+
+	/**
+	 * The tests of filterContours, cheapest first and the hull last. Computes
+	 * the hull of the geometry if it gets that far.
+	 */
+	private static boolean passesFilter(ContourGeometry geometry, double minArea, double minPerimeter,
+			double minWidth, double maxWidth, double minHeight, double maxHeight, double[] solidity,
+			double maxVertexCount, double minVertexCount, double minRatio, double maxRatio) {
+		final int width = geometry.getWidth();
+		final int height = geometry.getHeight();
+		if (width < minWidth || width > maxWidth)
+			return false;
+		if (height < minHeight || height > maxHeight)
+			return false;
+		if (geometry.getArea() < minArea)
+			return false;
+		if (geometry.getPerimeter() < minPerimeter)
+			return false;
+		if (geometry.getPointCount() < minVertexCount || geometry.getPointCount() > maxVertexCount)
+			return false;
+		final double ratio = geometry.getRatio();
+		if (ratio < minRatio || ratio > maxRatio)
+			return false;
+		final double solid = geometry.getSolidity();
+		return solid >= solidity[0] && solid <= solidity[1];
+	}
+
+	/**
+	 * Compute the convex hulls of contours. The hulls of the contours the
+	 * filter just kept are reused rather than computed again.
 	 * 
 	 * @param inputContours
 	 *            The contours on which to perform the operation.
 	 * @param outputContours
 	 *            The contours where the output will be stored.
 	 */
-	private void convexHulls(List<MatOfPoint> inputContours, ArrayList<MatOfPoint> outputContours) {
-		final MatOfInt hull = new MatOfInt();
+	void convexHulls(List<MatOfPoint> inputContours, ArrayList<MatOfPoint> outputContours) {
 		outputContours.clear();
+		if (inputContours == filteredHullsOwner && inputContours.size() == filteredHulls.size()) {
+			outputContours.addAll(filteredHulls);
+			return;
+		}
 		for (int i = 0; i < inputContours.size(); i++) {
-			final MatOfPoint contour = inputContours.get(i);
-			final MatOfPoint mopHull = new MatOfPoint();
-			Imgproc.convexHull(contour, hull);
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int) hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1] };
-				mopHull.put(j, 0, point);
-			}
+			final MatOfPoint mopHull = hullArena.acquire();
+			geometry.load(inputContours.get(i));
+			geometry.computeHull();
+			geometry.getHull(mopHull);
 			outputContours.add(mopHull);
 		}
 	}
@@ -304,58 +1151,82 @@ public class VisionPipeline {
 	 * @param polys
 	 *            The array of polygons
 	 */
-	private void approxPolys(ArrayList<MatOfPoint> contours, ArrayList<MatOfPoint2f> polys) {
+	void approxPolys(ArrayList<MatOfPoint> contours, ArrayList<MatOfPoint2f> polys) {
+		polys.clear();
 		for (int i = 0; i < contours.size(); i++) {
 			MatOfPoint contour = contours.get(i); // took out final
-			MatOfPoint2f contour2f = new MatOfPoint2f();
-			MatOfPoint2f aproxCont = new MatOfPoint2f();
+			MatOfPoint2f aproxCont = polyArena.acquire();
 			contour.convertTo(contour2f, CvType.CV_32FC2);
-			Imgproc.approxPolyDP(contour2f, aproxCont, 4, true);
+			Imgproc.approxPolyDP(contour2f, aproxCont, APPROX_EPSILON, true);
 			polys.add(aproxCont);
 		}
 	}
 
+	/**
+	 * @return the quads that passed the strip tests in the last frame
+	 */
+	public QuadBuffer getQuads() {
+		return quads;
+	}
+
+	/**
+	 * @return the slot in {@link #getQuads()} of the left strip, or -1
+	 */
+	public int getLeftStripSlot() {
+		return leftStrip;
+	}
+
+	/**
+	 * @return the slot in {@link #getQuads()} of the right strip, or -1
+	 */
+	public int getRightStripSlot() {
+		return rightStrip;
+	}
+
 	public int getTargetCandidateCount() {
 		return this.aproxPolysOutput.size();
 	}
 
 	public void findStrips(ArrayList<MatOfPoint2f> polys) {
-
+		quads.clear();
+		leftStrip = -1;
+		rightStrip = -1;
 
 		for (int i = 0; i < polys.size(); i++) {
 			MatOfPoint2f poly = polys.get(i);
 
 			if ((poly.rows() == 4) || (poly.rows() == 5)) {
-				Quadrilateral quad = new Quadrilateral();
-				quad.fromMatOfPoint2f(poly);
+				int quad = quads.add(poly);
 
-				if (quad.isDenaturated()) {
-					System.out.println("debug: Denaturated quad detected, skipping");
+				if (quad < 0) {
+					if (VERBOSE) {
+						System.out.println("debug: Denaturated quad detected, skipping");
+					}
 				} else {
-					
-					if (((quad.getHeight() > 40) ||
-							(quad.getHeight() > quad.getWidth() * 1.5))
-						&& (quad.getWidth() + 5 > quad.getHeight() * 2.0 / 5.0)) {
-						quads.add(quad);
+					int height = quads.getHeight(quad);
+					int width = quads.getWidth(quad);
+					if (!(((height > STRIP_TALL_ENOUGH * frameScale) || (height > width * 1.5))
+							&& (width + STRIP_WIDTH_SLACK * frameScale > height * 2.0 / 5.0))) {
+						quads.remove(quad);
 					}
 				}
-			} else {
+			} else if (VERBOSE) {
 				System.out.println("debug: Shape has " + poly.rows() + " vertices, not 4 or 5, skipping");
 			}
 		}
 
 		if (quads.size() == 3) { // see if two of the three can be merged into
 									// one.
-			if (Quadrilateral.lineUp(quads.get(0), quads.get(1))) {
-				quads.add(Quadrilateral.merge(quads.get(0), quads.get(1)));
+			if (quads.lineUp(0, 1)) {
+				quads.merge(0, 1);
 				quads.remove(1);
 				quads.remove(0);
-			} else if (Quadrilateral.lineUp(quads.get(1), quads.get(2))) {
-				quads.add(Quadrilateral.merge(quads.get(1), quads.get(2)));
+			} else if (quads.lineUp(1, 2)) {
+				quads.merge(1, 2);
 				quads.remove(2);
 				quads.remove(1);
-			} else if (Quadrilateral.lineUp(quads.get(0), quads.get(2))) {
-				quads.add(Quadrilateral.merge(quads.get(0), quads.get(2)));
+			} else if (quads.lineUp(0, 2)) {
+				quads.merge(0, 2);
 				quads.remove(2);
 				quads.remove(0);
 			} // else we still have three and the code below will set it to
@@ -365,18 +1236,18 @@ public class VisionPipeline {
 		// TODO: do we need more filters based on the quads?
 		switch (quads.size()) {
 		case 1:
-			leftStrip = quads.get(0); // TODO: we would need to keep track where
+			leftStrip = 0; // TODO: we would need to keep track where
 										// we are to know between frames to make
 										// this smarter.
 			targetAcquired = true;
 			break;
 		case 2:
-			if (quads.get(0).getCenter().x < quads.get(1).getCenter().x) {
-				leftStrip = quads.get(0);
-				rightStrip = quads.get(1);
+			if (quads.getCenterX(0) < quads.getCenterX(1)) {
+				leftStrip = 0;
+				rightStrip = 1;
 			} else {
-				leftStrip = quads.get(1);
-				rightStrip = quads.get(0);
+				leftStrip = 1;
+				rightStrip = 0;
 			}
 			targetAcquired = true;
 			break;
@@ -389,35 +1260,140 @@ public class VisionPipeline {
 		return targetAcquired;
 	}
 
+	/**
+	 * @return the width of the narrowest strip the size thresholds of the
+	 *         filter let through at the current frame width, in pixels of a
+	 *         frame {@link #REFERENCE_WIDTH} wide, taking the strip to be
+	 *         2.5 times as tall as it is wide
+	 */
+	public double getMinTargetWidth() {
+		double width = Math.max(filterContoursMinWidth, filterContoursMinHeight / STRIP_HEIGHT_OVER_WIDTH);
+		width = Math.max(width, filterContoursMinPerimeter / (2 * (1 + STRIP_HEIGHT_OVER_WIDTH)));
+		width = Math.max(width, Math.sqrt(filterContoursMinArea / STRIP_HEIGHT_OVER_WIDTH));
+		return width / frameScale;
+	}
+
+	/**
+	 * @return the width of the left strip, in pixels of a frame
+	 *         {@link #REFERENCE_WIDTH} wide, or 0 without a target
+	 */
 	public int getDistance() {
 		if (targetAcquired) {
-			return leftStrip.getWidth();
+			return (int) (quads.getWidth(leftStrip) / frameScale);
 		} else {
 			return 0;
 		}
 	}
 
+	/**
+	 * @return how far the bottom left corner of the left strip is left of the
+	 *         middle of the frame, in pixels of a frame
+	 *         {@link #REFERENCE_WIDTH} wide, or 0 without a target
+	 */
 	public int getError() {
 		if (targetAcquired) {
-			return (int) (160.0 - leftStrip.getBottomLeft().x);
+			return (int) ((frameWidth / 2.0 - quads.getX(leftStrip, QuadBuffer.BOTTOM_LEFT)) / frameScale);
 		} else {
 			return 0;
 		}
 	}
 
-	private int convertWidthToDistance(int width) {
-		int retVal = 0;
-		switch (width) {
-		case 2:
-			retVal = 90;
-			break;
-		case 3:
-			retVal = 80;
-			break;
-		default:
-			retVal = 0;
+	/**
+	 * Works out the distance and yaw of the target from the camera model:
+	 * the distance from the row of the bottom of the left strip, the yaw from
+	 * the column of the middle of the corners of both strips, or of the left
+	 * strip if it is alone.
+	 */
+	private void measureTarget() {
+		if (!targetAcquired) {
+			distanceInches = 0;
+			yawDegrees = 0;
+			angle = 0;
+			return;
+		}
+		CameraModel.Tables tables = cameraTables;
+		if (tables == null || tables.getWidth() != frameWidth || tables.getHeight() != frameHeight) {
+			tables = cameraModel.tablesFor(frameWidth, frameHeight);
+			cameraTables = tables;
+		}
+		int corners = copyCorners(leftStrip, 0);
+		if (rightStrip >= 0) {
+			corners = copyCorners(rightStrip, corners);
+		}
+		if (undistort) {
+			for (int i = 0; i < corners; i += 2) {
+				tables.undistort(targetCorners, i);
+			}
+		}
+		double bottom = (targetCorners[QuadBuffer.BOTTOM_LEFT * 2 + 1] + targetCorners[QuadBuffer.BOTTOM_RIGHT * 2 + 1])
+				/ 2;
+		double distance = tables.distanceAt(bottom);
+		distanceInches = Double.isNaN(distance) ? 0 : distance;
+		double x = 0;
+		for (int i = 0; i < corners; i += 2) {
+			x += targetCorners[i];
+		}
+		x /= corners / 2;
+		yawDegrees = Math.toDegrees(tables.bearingAt(x));
+		angle = (int) Math.round(yawDegrees);
+	}
+
+	/**
+	 * Copies the corners of a strip to targetCorners.
+	 *
+	 * @return the index after them
+	 */
+	private int copyCorners(int strip, int index) {
+		for (int corner = 0; corner < 4; corner++) {
+			targetCorners[index++] = quads.getX(strip, corner);
+			targetCorners[index++] = quads.getY(strip, corner);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the distance along the floor to the target, in inches, or 0
+	 *         without a target or if the camera model can not tell
+	 */
+	public double getDistanceInches() {
+		return distanceInches;
+	}
+
+	/**
+	 * @return how far the target is right of the robot's front, in degrees,
+	 *         or 0 without a target
+	 */
+	public double getYawDegrees() {
+		return yawDegrees;
+	}
+
+	/**
+	 * Releases the native memory of every Mat the pipeline holds. The pipeline
+	 * can not be used after this.
+	 */
+	@Override
+	public void close() {
+		releaseContours(findContoursOutput);
+		filterContoursOutput.clear();
+		convexHullsOutput.clear();
+		aproxPolysOutput.clear();
+		quads.clear();
+		hullArena.close();
+		polyArena.close();
+		hsvThresholdOutput.release();
+		hsvMat.release();
+		findContoursInput.release();
+		hierarchy.release();
+		componentLabels.release();
+		componentStats.release();
+		componentCentroids.release();
+		pyramidFrame.release();
+		filteredHulls.clear();
+		filteredHullsOwner = null;
+		contour2f.release();
+		if (parallelContours != null) {
+			parallelContours.close();
 		}
-		return retVal;
 	}
 
 }
@@ -0,0 +1,37 @@
+package org.team1635.vision;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The thread pool the pipeline stages use to split their work across cores.
+ * There is one pool for the whole program, sized to the number of cores, so
+ * that several pipelines running at once do not oversubscribe the CPU.
+ */
+public class VisionWorkers {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+			new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("VisionWorker-" + thread.getPoolIndex());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, null, false);
+
+	private VisionWorkers() {
+	}
+
+	public static ForkJoinPool pool() {
+		return POOL;
+	}
+
+	/**
+	 * @return how many pieces it is worth splitting a job into
+	 */
+	public static int parallelism() {
+		return POOL.getParallelism();
+	}
+}
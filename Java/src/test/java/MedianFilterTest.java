@@ -0,0 +1,67 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MedianFilterTest {
+
+  @Test
+  public void emptyIsZero() {
+    MedianFilter filter = new MedianFilter(5);
+    assertEquals(0, filter.median(), 0);
+    assertEquals(0, filter.getCount());
+  }
+
+  @Test
+  public void medianOfPartialWindow() {
+    MedianFilter filter = new MedianFilter(5);
+    assertEquals(10, filter.add(10), 0);
+    // An even count averages the two middle values
+    assertEquals(15, filter.add(20), 0);
+    assertEquals(10, filter.add(5), 0);
+    assertEquals(3, filter.getCount());
+  }
+
+  @Test
+  public void wildValuesDoNotMoveIt() {
+    MedianFilter filter = new MedianFilter(5);
+    filter.add(24);
+    filter.add(24.5);
+    filter.add(23.5);
+    filter.add(24);
+    assertEquals(24, filter.add(150), 0);
+    // Two wild values out of five are still less than half
+    assertEquals(24, filter.add(0), 0);
+  }
+
+  @Test
+  public void oldestValueIsDropped() {
+    MedianFilter filter = new MedianFilter(3);
+    filter.add(1);
+    filter.add(2);
+    filter.add(3);
+    filter.add(10);
+    // The window is 2, 3, 10
+    assertEquals(3, filter.median(), 0);
+    assertEquals(3, filter.getCount());
+    // and then 3, 10, 11
+    assertEquals(10, filter.add(11), 0);
+  }
+
+  @Test
+  public void resetEmptiesIt() {
+    MedianFilter filter = new MedianFilter(3);
+    filter.add(7);
+    filter.add(8);
+    filter.reset();
+    assertEquals(0, filter.median(), 0);
+    assertEquals(4, filter.add(4), 0);
+  }
+
+  @Test
+  public void sizeIsAtLeastOne() {
+    MedianFilter filter = new MedianFilter(0);
+    filter.add(1);
+    assertEquals(2, filter.add(2), 0);
+    assertEquals(1, filter.getCount());
+  }
+}
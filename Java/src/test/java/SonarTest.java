@@ -0,0 +1,164 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs the sonar against SimulatedSonarGpio, which answers each trigger
+ * straight away, so no pins are needed.
+ */
+public class SonarTest {
+  private static final double RATE = 100;
+  private static final long PERIOD_NANOS = (long) (1e9 / RATE);
+  // For the time between noting a trigger and the sonar noting it
+  private static final long SLACK_NANOS = 1000000;
+
+  /**
+   * Passes the triggers on, or not, notes when they came and stops the sonar
+   * after a number of them.
+   */
+  private static class CountingGpio implements SonarGpio {
+    final SimulatedSonarGpio sensor;
+    final int triggers;
+    final List<Long> triggerNanos = new ArrayList<Long>();
+    boolean answering = true;
+    // From this trigger on the sensor hears nothing
+    int silentFrom = -1;
+    // A trigger that takes this long, to make the sonar fall behind
+    int slowTrigger = -1;
+    long slowNanos = 0;
+    boolean closed = false;
+    Sonar sonar;
+
+    CountingGpio(SimulatedSonarGpio sensor, int triggers) {
+      this.sensor = sensor;
+      this.triggers = triggers;
+    }
+
+    public void setEchoListener(EchoListener listener) {
+      sensor.setEchoListener(listener);
+    }
+
+    public void trigger() {
+      triggerNanos.add(System.nanoTime());
+      if (triggerNanos.size() == silentFrom) {
+        sensor.setEchoing(false);
+      }
+      if (answering) {
+        sensor.trigger();
+      }
+      if (triggerNanos.size() == slowTrigger) {
+        long end = System.nanoTime() + slowNanos;
+        while (System.nanoTime() - end < 0) {
+          Thread.yield();
+        }
+      }
+      if (triggerNanos.size() == triggers) {
+        sonar.stop();
+      }
+    }
+
+    public void close() {
+      closed = true;
+      sensor.close();
+    }
+  }
+
+  private static CountingGpio run(SimulatedSonarGpio sensor, int triggers,
+    int window) {
+    CountingGpio gpio = new CountingGpio(sensor, triggers);
+    return run(gpio, window);
+  }
+
+  private static CountingGpio run(CountingGpio gpio, int window) {
+    gpio.sonar = new Sonar(gpio, RATE, window);
+    gpio.sonar.run();
+    return gpio;
+  }
+
+  @Test
+  public void readingsInRangeAreKept() {
+    CountingGpio gpio = run(new SimulatedSonarGpio(24, 0, 0, 1), 10, 5);
+    assertEquals(10, gpio.sonar.getReadings());
+    assertEquals(0, gpio.sonar.getRejected());
+    assertEquals(0, gpio.sonar.getMissed());
+    assertEquals(24, gpio.sonar.getDistance(), 0.01);
+    assertEquals(24, gpio.sonar.getRawDistance(), 0.01);
+    assertTrue(gpio.closed);
+  }
+
+  @Test
+  public void noEchoIsRejected() {
+    SimulatedSonarGpio sensor = new SimulatedSonarGpio(24, 0, 0, 1);
+    // The echo stays high for 38 ms, which is past the 400 cm of the sensor
+    sensor.setEchoing(false);
+    CountingGpio gpio = run(sensor, 10, 5);
+    assertEquals(0, gpio.sonar.getReadings());
+    assertEquals(10, gpio.sonar.getRejected());
+    assertEquals(0, gpio.sonar.getDistance(), 0);
+  }
+
+  @Test
+  public void tooCloseIsRejected() {
+    // Half an inch is under the 2 cm the sensor can measure
+    CountingGpio gpio = run(new SimulatedSonarGpio(0.5, 0, 0, 1), 10, 5);
+    assertEquals(0, gpio.sonar.getReadings());
+    assertEquals(10, gpio.sonar.getRejected());
+  }
+
+  @Test
+  public void rejectedEchoesDoNotMoveTheDistance() {
+    SimulatedSonarGpio sensor = new SimulatedSonarGpio(24, 0, 0, 1);
+    CountingGpio gpio = new CountingGpio(sensor, 10);
+    gpio.silentFrom = 8;
+    run(gpio, 5);
+    assertEquals(7, gpio.sonar.getReadings());
+    assertEquals(3, gpio.sonar.getRejected());
+    assertEquals(24, gpio.sonar.getDistance(), 0.01);
+  }
+
+  @Test
+  public void missedEchoesAreCounted() {
+    CountingGpio gpio = new CountingGpio(
+      new SimulatedSonarGpio(24, 0, 0, 1), 10);
+    gpio.answering = false;
+    run(gpio, 5);
+    // The last trigger has no next one to find its echo missing
+    assertEquals(9, gpio.sonar.getMissed());
+    assertEquals(0, gpio.sonar.getReadings());
+  }
+
+  @Test
+  public void triggersKeepTheRate() {
+    long start = System.nanoTime();
+    CountingGpio gpio = run(new SimulatedSonarGpio(24, 0, 0, 1), 10, 5);
+    assertEquals(10, gpio.triggerNanos.size());
+    for (int i = 0; i < gpio.triggerNanos.size(); i++) {
+      assertTrue("trigger " + i + " came early",
+        gpio.triggerNanos.get(i) - start >= i * PERIOD_NANOS);
+    }
+    // Sleeping in between does not drift much past the schedule
+    long last = gpio.triggerNanos.get(9) - start;
+    assertTrue("took " + last / 1e6 + " ms", last < 9 * PERIOD_NANOS
+      + 250000000L);
+  }
+
+  @Test
+  public void fallingBehindDoesNotCatchUp() {
+    CountingGpio gpio = new CountingGpio(
+      new SimulatedSonarGpio(24, 0, 0, 1), 8);
+    gpio.slowTrigger = 3;
+    gpio.slowNanos = 5 * PERIOD_NANOS;
+    run(gpio, 5);
+    List<Long> times = gpio.triggerNanos;
+    // The trigger after the slow one goes straight away, and the schedule
+    // starts over from it instead of making up for the lost triggers
+    for (int i = 4; i < times.size(); i++) {
+      assertTrue("trigger " + i + " came early", times.get(i) - times.get(3)
+        >= (i - 3) * PERIOD_NANOS - SLACK_NANOS);
+    }
+  }
+}
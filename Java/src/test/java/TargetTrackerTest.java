@@ -0,0 +1,121 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TargetTrackerTest {
+  private static final long FRAME_NANOS = 40000000L;
+  // From the camera glass to the grab
+  private static final long GRAB_DELAY_NANOS = 30000000L;
+
+  private final TargetTracker tracker = new TargetTracker();
+  private final VisionResult out = new VisionResult();
+  private long frameNanos = 1000000000L;
+
+  /**
+   * Feed the tracker the next frame, with a target at an error or without
+   * one.
+   */
+  private void frame(boolean target, int error) {
+    frameNanos += FRAME_NANOS;
+    VisionResult result = new VisionResult();
+    result.processed = true;
+    result.captureNanos = frameNanos;
+    result.grabNanos = frameNanos + GRAB_DELAY_NANOS;
+    result.targetAcquired = target;
+    result.error = error;
+    result.distance = 20;
+    tracker.update(result);
+  }
+
+  @Test
+  public void twoFramesAcquire() {
+    frame(true, 10);
+    assertFalse(tracker.isAcquired());
+    frame(true, 10);
+    assertTrue(tracker.isAcquired());
+    tracker.predict(frameNanos, out);
+    assertTrue(out.targetAcquired);
+    assertEquals(10, out.error);
+  }
+
+  @Test
+  public void twoFramesRelease() {
+    for (int i = 0; i < 5; i++) {
+      frame(true, 10);
+    }
+    frame(false, 0);
+    assertTrue("one miss is noise", tracker.isAcquired());
+    frame(false, 0);
+    assertFalse(tracker.isAcquired());
+    tracker.predict(frameNanos, out);
+    assertFalse(out.targetAcquired);
+  }
+
+  @Test
+  public void followsAMovingTarget() {
+    for (int i = 0; i < 20; i++) {
+      frame(true, 2 * i);
+    }
+    // 2 pixels a frame is 50 pixels a second
+    tracker.predict(frameNanos + FRAME_NANOS, out);
+    assertEquals(40, out.error, 2);
+  }
+
+  @Test
+  public void predictsFromTheCaptureTime() {
+    for (int i = 0; i < 20; i++) {
+      frame(true, 2 * i);
+    }
+    // At the grab of the last frame the target has moved on for the time
+    // between the glass and the grab, 30 ms at 50 pixels a second
+    tracker.predict(frameNanos + GRAB_DELAY_NANOS, out);
+    assertEquals(38 + 1.5, out.error, 1);
+  }
+
+  @Test
+  public void jumpStartsOver() {
+    for (int i = 0; i < 20; i++) {
+      frame(true, 2 * i);
+    }
+    // Much further than GATE from the prediction: another target
+    frame(true, -100);
+    tracker.predict(frameNanos + FRAME_NANOS, out);
+    // The rate of the old target is forgotten
+    assertEquals(-100, out.error);
+    assertTrue(tracker.isAcquired());
+  }
+
+  @Test
+  public void releasesWithoutFrames() {
+    frame(true, 10);
+    frame(true, 10);
+    tracker.predict(frameNanos + 400000000L, out);
+    assertTrue(out.targetAcquired);
+    double confidence = tracker.getConfidence();
+    // The camera went away and no frame came for over half a second
+    tracker.predict(frameNanos + 600000000L, out);
+    assertFalse(out.targetAcquired);
+    assertFalse(tracker.isAcquired());
+    assertTrue(tracker.getConfidence() < confidence);
+    // Once frames come again, the target needs two of them again
+    frame(true, 50);
+    assertFalse(tracker.isAcquired());
+    frame(true, 50);
+    assertTrue(tracker.isAcquired());
+    tracker.predict(frameNanos, out);
+    assertEquals(50, out.error);
+  }
+
+  @Test
+  public void predictionIsCapped() {
+    for (int i = 0; i < 20; i++) {
+      frame(true, 2 * i);
+    }
+    // Not more than 200 ms past the last frame, so about 10 pixels on
+    tracker.predict(frameNanos + 450000000L, out);
+    assertTrue(out.targetAcquired);
+    assertTrue("error " + out.error, out.error <= 38 + 12);
+  }
+}
@@ -0,0 +1,81 @@
+package org.team1635.vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Feeds the same scene to the pipeline at several resolutions: what it finds,
+ * and where, must not depend on the camera mode. Needs the desktop OpenCV
+ * natives, which the test task puts on java.library.path.
+ */
+public class StripScaleTest {
+
+	// Of the reference frame, 320 wide
+	private static final double[] SCALES = { 0.5, 1, 2 };
+
+	@BeforeClass
+	public static void loadLibrary() {
+		System.loadLibrary("opencv_java310");
+	}
+
+	/**
+	 * Runs a new pipeline on a frame with two white boxes on grey, given in
+	 * pixels of a 320x240 frame and scaled by scale.
+	 */
+	private static VisionPipeline process(double scale, int width, int height) {
+		Mat frame = new Mat((int) (240 * scale), (int) (320 * scale), CvType.CV_8UC3, new Scalar(40, 40, 40));
+		Scalar white = new Scalar(255, 255, 255);
+		int[] lefts = { 118, 178 };
+		for (int left : lefts) {
+			Imgproc.rectangle(frame, new Point(left * scale, 90 * scale),
+					new Point((left + width) * scale - 1, (90 + height) * scale - 1), white, Imgproc.FILLED);
+		}
+		VisionPipeline pipeline = new VisionPipeline();
+		pipeline.setFilter(new double[] { 0.0, 173.0 }, new double[] { 0.0, 32.0 }, new double[] { 249.0, 255.0 });
+		pipeline.process(frame);
+		frame.release();
+		return pipeline;
+	}
+
+	@Test
+	public void stripsAreFoundTheSameAtEveryResolution() {
+		for (double scale : SCALES) {
+			VisionPipeline pipeline = process(scale, 12, 30);
+			assertTrue("found at " + scale, pipeline.getTargetAcquired());
+			assertEquals("width at " + scale, 12, pipeline.getDistance(), 1);
+			assertEquals("error at " + scale, 160 - 118, pipeline.getError(), 1);
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void squaresAreRejectedAtEveryResolution() {
+		// Neither tall enough nor taller than wide; at 640 wide they are 60
+		// pixels tall, which must not count as tall enough
+		for (double scale : SCALES) {
+			VisionPipeline pipeline = process(scale, 30, 30);
+			assertFalse("found at " + scale, pipeline.getTargetAcquired());
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void thinStripsAreRejectedAtEveryResolution() {
+		// Narrower than 2/5 of the height by more than the slack; at 160 wide
+		// an unscaled slack would let them through
+		for (double scale : SCALES) {
+			VisionPipeline pipeline = process(scale, 10, 40);
+			assertFalse("found at " + scale, pipeline.getTargetAcquired());
+			pipeline.close();
+		}
+	}
+}